@@ -0,0 +1,34 @@
+package by.segg3r.mongoqueue.benchmark;
+
+import by.segg3r.mongoqueue.Message;
+
+public class BenchmarkMessage extends Message {
+
+	private String key;
+	private int value;
+
+	public BenchmarkMessage() {
+	}
+
+	public BenchmarkMessage(String key, int value) {
+		this.key = key;
+		this.value = value;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public void setKey(String key) {
+		this.key = key;
+	}
+
+	public int getValue() {
+		return value;
+	}
+
+	public void setValue(int value) {
+		this.value = value;
+	}
+
+}
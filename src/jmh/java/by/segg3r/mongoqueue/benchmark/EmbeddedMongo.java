@@ -0,0 +1,53 @@
+package by.segg3r.mongoqueue.benchmark;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import de.flapdoodle.embed.mongo.MongodExecutable;
+import de.flapdoodle.embed.mongo.MongodStarter;
+import de.flapdoodle.embed.mongo.config.MongodConfigBuilder;
+import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.process.runtime.Network;
+import java.io.IOException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.SimpleMongoDbFactory;
+
+/**
+ * Mongo instance shared by all benchmarks of a JVM. Starts an embedded mongod on a free port,
+ * unless <b>mongo.uri</b> system property points to an already running one.
+ */
+public final class EmbeddedMongo {
+
+	public static final String DATABASE = "benchmark";
+
+	private static MongoClient client;
+
+	private EmbeddedMongo() {
+	}
+
+	public static synchronized MongoClient client() throws IOException {
+		if (client != null) return client;
+
+		String uri = System.getProperty("mongo.uri");
+		if (uri != null) {
+			client = new MongoClient(new MongoClientURI(uri));
+			return client;
+		}
+
+		int port = Network.getFreeServerPort();
+		MongodExecutable executable = MongodStarter.getDefaultInstance().prepare(new MongodConfigBuilder()
+				.version(Version.Main.PRODUCTION)
+				.net(new Net(port, Network.localhostIsIPv6()))
+				.build());
+		executable.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(executable::stop));
+
+		client = new MongoClient("localhost", port);
+		return client;
+	}
+
+	public static MongoTemplate mongoTemplate() throws IOException {
+		return new MongoTemplate(new SimpleMongoDbFactory(client(), DATABASE));
+	}
+
+}
@@ -0,0 +1,119 @@
+package by.segg3r.mongoqueue.benchmark;
+
+import by.segg3r.mongoqueue.BatchOptions;
+import by.segg3r.mongoqueue.MessageQueue;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of single {@link MessageQueue} operations, which drain or grow the queue, on queues of different depth, with and without get() index.
+ * Before every iteration the queue is refilled to <b>depth</b> + {@link #BATCH} available messages,
+ * and {@link #BATCH} more messages are claimed for the ack benchmark.
+ * Every iteration runs {@link #BATCH} operations, so the depth changes by at most that much.
+ * Runs in a single thread, since the claimed messages and the depth are shared by the benchmark,
+ * so the <b>jmh</b> task runs it once with one thread, outside of its thread count sweep.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, batchSize = MessageQueueBatchBenchmark.BATCH)
+@Measurement(iterations = 5, batchSize = MessageQueueBatchBenchmark.BATCH)
+@Threads(1)
+@Fork(1)
+public class MessageQueueBatchBenchmark {
+
+	static final int BATCH = 1000;
+
+	@Param({"1000", "100000", "1000000"})
+	public int depth;
+
+	@Param({"true", "false"})
+	public boolean indexed;
+
+	private DBCollection collection;
+	private MessageQueue queue;
+	private Deque<BasicDBObject> claimed = new ArrayDeque<>();
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		collection = EmbeddedMongo.mongoTemplate().getDb().getCollection("queueBatchBenchmark");
+		collection.drop();
+
+		queue = new MessageQueue(collection);
+		if (indexed) {
+			queue.ensureGetIndex();
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void refill() {
+		//messages claimed by the previous iteration and not acked are given back, and the surplus of sends is removed
+		collection.updateMulti(new BasicDBObject("running", true),
+				new BasicDBObject("$set", new BasicDBObject("running", false).append("resetTimestamp", new Date(Long.MAX_VALUE))));
+
+		long size = depth + 2 * BATCH;
+		long count = collection.count();
+		if (count > size) {
+			List<Object> surplus = new ArrayList<>();
+			try (DBCursor cursor = collection.find(new BasicDBObject(), new BasicDBObject("_id", 1))
+					.sort(new BasicDBObject("created", -1))
+					.limit((int) (count - size))) {
+				for (DBObject message : cursor) {
+					surplus.add(message.get("_id"));
+				}
+			}
+			collection.remove(new BasicDBObject("_id", new BasicDBObject("$in", surplus)));
+		}
+
+		List<BasicDBObject> payloads = new ArrayList<>();
+		for (long i = count; i < size; i++) {
+			payloads.add(payload((int) i));
+		}
+		if (!payloads.isEmpty()) {
+			queue.sendBatch(payloads, new Date(), 0.0, BatchOptions.unordered());
+		}
+
+		claimed = new ArrayDeque<>(queue.getBatch(new BasicDBObject(), BATCH, 600, 0));
+	}
+
+	@Benchmark
+	public void send() {
+		queue.send(payload(0));
+	}
+
+	@Benchmark
+	public BasicDBObject get() {
+		return queue.get(new BasicDBObject(), 600, 0);
+	}
+
+	@Benchmark
+	public void ack() {
+		queue.ack(claimed.poll());
+	}
+
+	private static BasicDBObject payload(int value) {
+		return new BasicDBObject("key", "benchmark").append("value", value);
+	}
+
+}
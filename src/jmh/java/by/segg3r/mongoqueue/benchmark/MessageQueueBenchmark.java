@@ -0,0 +1,92 @@
+package by.segg3r.mongoqueue.benchmark;
+
+import by.segg3r.mongoqueue.BatchOptions;
+import by.segg3r.mongoqueue.MessageQueue;
+import by.segg3r.mongoqueue.QueueOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of {@link MessageQueue} operations on queues of different depth, with and without get() index,
+ * and with strict claim order or a {@link QueueOptions#getClaimSpread() claim spread}, compared across thread counts of the <b>jmh</b> task.
+ * Get benchmarks send a replacement for every consumed message, so the queue depth stays the same.
+ * Operations draining or growing the queue are benchmarked by {@link MessageQueueBatchBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MessageQueueBenchmark {
+
+	@Param({"1000", "100000", "1000000"})
+	public int depth;
+
+	@Param({"true", "false"})
+	public boolean indexed;
+
+	@Param({"1", "8"})
+	public int claimSpread;
+
+	private MessageQueue queue;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		DBCollection collection = EmbeddedMongo.mongoTemplate().getDb().getCollection("queueBenchmark");
+		collection.drop();
+
+		queue = new MessageQueue(collection, QueueOptions.defaultOptions().withClaimSpread(claimSpread));
+		if (indexed) {
+			queue.ensureGetIndex();
+		}
+
+		List<BasicDBObject> payloads = new ArrayList<>(depth);
+		for (int i = 0; i < depth; i++) {
+			payloads.add(payload(i));
+		}
+		queue.sendBatch(payloads, new Date(), 0.0, BatchOptions.unordered());
+	}
+
+	@Benchmark
+	public BasicDBObject getAck() {
+		BasicDBObject message = queue.get(new BasicDBObject(), 60, 0);
+		if (message != null) {
+			queue.ack(message);
+			queue.send(payload(0));
+		}
+
+		return message;
+	}
+
+	@Benchmark
+	public BasicDBObject getAckSend() {
+		BasicDBObject message = queue.get(new BasicDBObject(), 60, 0);
+		if (message != null) {
+			queue.ackSend(message, payload(0));
+		}
+
+		return message;
+	}
+
+	private static BasicDBObject payload(int value) {
+		return new BasicDBObject("key", "benchmark").append("value", value);
+	}
+
+}
@@ -0,0 +1,80 @@
+package by.segg3r.mongoqueue.benchmark;
+
+import by.segg3r.mongoqueue.BatchOptions;
+import by.segg3r.mongoqueue.MessageIndex;
+import by.segg3r.mongoqueue.MessageQueueTemplate;
+import by.segg3r.mongoqueue.ReadTimings;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+/**
+ * Benchmarks of {@link MessageQueueTemplate} operations, including conversion with Spring {@link MongoTemplate} converter,
+ * on queues of different depth, with and without get() index.
+ * Read benchmark puts a replacement for every consumed message, so the queue depth stays the same.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MessageQueueTemplateBenchmark {
+
+	private static final ReadTimings TIMINGS = ReadTimings.waitingFor(0);
+
+	@Param({"1000", "100000", "1000000"})
+	public int depth;
+
+	@Param({"true", "false"})
+	public boolean indexed;
+
+	private MessageQueueTemplate template;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		MongoTemplate mongoTemplate = EmbeddedMongo.mongoTemplate();
+		mongoTemplate.dropCollection("templateBenchmark");
+
+		template = new MessageQueueTemplate(mongoTemplate, "templateBenchmark");
+		if (indexed) {
+			template.ensureIndex(MessageIndex.byMessageId());
+		}
+
+		List<BenchmarkMessage> messages = new ArrayList<>(depth);
+		for (int i = 0; i < depth; i++) {
+			messages.add(new BenchmarkMessage("benchmark", i));
+		}
+		template.putAll(messages, BatchOptions.unordered());
+	}
+
+	@Benchmark
+	public void put() {
+		template.put(new BenchmarkMessage("benchmark", 0));
+	}
+
+	@Benchmark
+	public BenchmarkMessage readAcknowledge() {
+		BenchmarkMessage message = template.read(BenchmarkMessage.class, TIMINGS);
+		if (message != null) {
+			template.acknowledge(message);
+			template.put(new BenchmarkMessage("benchmark", 0));
+		}
+
+		return message;
+	}
+
+}
@@ -0,0 +1,44 @@
+package by.segg3r.mongoqueue.soak;
+
+import by.segg3r.mongoqueue.Message;
+
+public class SoakMessage extends Message {
+
+	private long sequence;
+	private long dueNanos;
+	private String body;
+
+	public SoakMessage() {
+	}
+
+	public SoakMessage(long sequence, long dueNanos, String body) {
+		this.sequence = sequence;
+		this.dueNanos = dueNanos;
+		this.body = body;
+	}
+
+	public long getSequence() {
+		return sequence;
+	}
+
+	public void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
+	public long getDueNanos() {
+		return dueNanos;
+	}
+
+	public void setDueNanos(long dueNanos) {
+		this.dueNanos = dueNanos;
+	}
+
+	public String getBody() {
+		return body;
+	}
+
+	public void setBody(String body) {
+		this.body = body;
+	}
+
+}
@@ -0,0 +1,45 @@
+package by.segg3r.mongoqueue.soak;
+
+/**
+ * Soak run settings, read from <b>soak.*</b> system properties.
+ */
+final class SoakOptions {
+
+	/** Number of producer threads. */
+	final int producers = Integer.getInteger("soak.producers", 4);
+	/** Number of consumer threads. */
+	final int consumers = Integer.getInteger("soak.consumers", 8);
+	/** Duration of the produce phase, in seconds. Consumers keep draining the queue afterwards. */
+	final int durationSeconds = Integer.getInteger("soak.durationSeconds", 300);
+	/** Size of message body, in characters. */
+	final int messageSize = Integer.getInteger("soak.messageSize", 256);
+	/** Number of distinct priorities messages are spread across. */
+	final int priorities = Integer.getInteger("soak.priorities", 3);
+	/** Share of messages put with earliestGet in the future. */
+	final double delayedRatio = Double.parseDouble(System.getProperty("soak.delayedRatio", "0.1"));
+	/** Max delay of delayed messages, in milliseconds. */
+	final int maxDelay = Integer.getInteger("soak.maxDelay", 5000);
+	/** Acknowledge period (lease duration) consumers read with, in seconds. */
+	final int acknowledgePeriod = Integer.getInteger("soak.acknowledgePeriod", 10);
+	/** Share of claimed messages consumers abandon without acknowledging, to exercise lease expiry. */
+	final double abandonRatio = Double.parseDouble(System.getProperty("soak.abandonRatio", "0.001"));
+	/** Simulated processing time of a message, in milliseconds. */
+	final int processingTime = Integer.getInteger("soak.processingTime", 0);
+	/** Whether queue runs the background lease reaper instead of resetting stuck messages in get(). */
+	final boolean reaper = Boolean.getBoolean("soak.reaper");
+	/** Whether queue uses tailable signals instead of plain polling. */
+	final boolean signals = Boolean.getBoolean("soak.signals");
+	/** Number of collections backing the queue. */
+	final int partitions = Integer.getInteger("soak.partitions", 1);
+	/** Interval of progress reports, in seconds. */
+	final int reportInterval = Integer.getInteger("soak.reportInterval", 10);
+
+	@Override
+	public String toString() {
+		return String.format("producers=%d consumers=%d duration=%ds messageSize=%d priorities=%d delayedRatio=%.3f "
+						+ "maxDelay=%dms acknowledgePeriod=%ds abandonRatio=%.4f processingTime=%dms reaper=%b signals=%b partitions=%d",
+				producers, consumers, durationSeconds, messageSize, priorities, delayedRatio,
+				maxDelay, acknowledgePeriod, abandonRatio, processingTime, reaper, signals, partitions);
+	}
+
+}
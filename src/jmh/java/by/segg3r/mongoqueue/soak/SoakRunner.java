@@ -0,0 +1,262 @@
+package by.segg3r.mongoqueue.soak;
+
+import by.segg3r.mongoqueue.MessageQueueTemplate;
+import by.segg3r.mongoqueue.QueueOptions;
+import by.segg3r.mongoqueue.ReadTimings;
+import by.segg3r.mongoqueue.benchmark.EmbeddedMongo;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import org.springframework.data.mongodb.core.MongoTemplate;
+
+/**
+ * End-to-end load tool driving {@link MessageQueueTemplate} with concurrent producers and consumers for a configured time.
+ * Reports throughput, enqueue-to-claim and claim-to-ack latency percentiles, and checks delivery guarantees:
+ * every put message should be acknowledged exactly once, and should be delivered again only after its lease expired.
+ * Settings are described in {@link SoakOptions}. Exits with status 1 if lost or duplicate messages are detected.
+ */
+public final class SoakRunner {
+
+	private static final String QUEUE = "soak";
+	private static final int READ_WAIT = 1000; // 1 second
+	private static final int REPORTED_SEQUENCES = 20;
+	// claim is timestamped by the client after the server started the lease, so allow some skew
+	private static final long LEASE_SLACK = TimeUnit.SECONDS.toNanos(1);
+
+	private final SoakOptions options;
+	private final MessageQueueTemplate template;
+	private final String body;
+
+	private final Map<Long, Delivery> deliveries = new ConcurrentHashMap<>();
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicLong claimed = new AtomicLong();
+	private final AtomicLong acknowledged = new AtomicLong();
+	private final AtomicLong abandoned = new AtomicLong();
+	private final AtomicLong redelivered = new AtomicLong();
+	private final AtomicLong duplicates = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final LatencyHistogram enqueueToClaim = new LatencyHistogram();
+	private final LatencyHistogram claimToAck = new LatencyHistogram();
+
+	private volatile boolean producing = true;
+	private volatile boolean consuming = true;
+
+	private SoakRunner(SoakOptions options, MongoTemplate mongoTemplate) {
+		this.options = options;
+		QueueOptions queueOptions = options.reaper ? QueueOptions.withReaperEnabled() : QueueOptions.defaultOptions();
+		if (options.signals) {
+			queueOptions = queueOptions.withSignals(true);
+		}
+		this.template = new MessageQueueTemplate(mongoTemplate, QUEUE, queueOptions.withPartitions(options.partitions));
+
+		char[] chars = new char[options.messageSize];
+		Arrays.fill(chars, 'x');
+		this.body = new String(chars);
+	}
+
+	public static void main(String[] args) throws Exception {
+		SoakOptions options = new SoakOptions();
+		MongoTemplate mongoTemplate = EmbeddedMongo.mongoTemplate();
+		for (int i = 0; i < options.partitions; i++) {
+			mongoTemplate.dropCollection(i == 0 ? QUEUE : QUEUE + "." + i);
+		}
+
+		SoakRunner runner = new SoakRunner(options, mongoTemplate);
+		boolean passed;
+		try {
+			passed = runner.run();
+		} finally {
+			runner.template.close();
+		}
+
+		System.exit(passed ? 0 : 1);
+	}
+
+	private boolean run() throws InterruptedException {
+		System.out.println("Soak run: " + options);
+
+		List<Thread> producers = start("soak-producer-", options.producers, this::produce);
+		List<Thread> consumers = start("soak-consumer-", options.consumers, this::consume);
+
+		long start = System.nanoTime();
+		long produceEnd = start + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+		while (System.nanoTime() < produceEnd) {
+			sleep(Math.min(TimeUnit.SECONDS.toMillis(options.reportInterval), TimeUnit.NANOSECONDS.toMillis(produceEnd - System.nanoTime())));
+			report("progress", start);
+		}
+
+		producing = false;
+		join(producers);
+
+		// abandoned leases and delayed messages need at least that long to become available again
+		long drainEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(options.acknowledgePeriod * 2 + 30)
+				+ TimeUnit.MILLISECONDS.toNanos(options.maxDelay);
+		while (acknowledged.get() < deliveries.size() && System.nanoTime() < drainEnd) {
+			sleep(READ_WAIT);
+		}
+
+		consuming = false;
+		join(consumers);
+
+		report("final", start);
+		return verify();
+	}
+
+	private void produce() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		while (producing) {
+			long delay = random.nextDouble() < options.delayedRatio ? random.nextInt(options.maxDelay + 1) : 0;
+			long now = System.currentTimeMillis();
+			long seq = sequence.incrementAndGet();
+			deliveries.put(seq, new Delivery());
+
+			SoakMessage message = new SoakMessage(seq, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay), body);
+			try {
+				template.put(message, new Date(now + delay), random.nextInt(Math.max(1, options.priorities)));
+			} catch (RuntimeException e) {
+				deliveries.remove(seq);
+				errors.incrementAndGet();
+			}
+		}
+	}
+
+	private void consume() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		ReadTimings timings = ReadTimings.waitingFor(READ_WAIT).withAcknowledgePeriod(options.acknowledgePeriod);
+		while (consuming) {
+			SoakMessage message;
+			try {
+				message = template.read(SoakMessage.class, timings);
+			} catch (RuntimeException e) {
+				errors.incrementAndGet();
+				continue;
+			}
+			if (message == null) continue;
+
+			long claimedAt = System.nanoTime();
+			claimed.incrementAndGet();
+			enqueueToClaim.record(claimedAt - message.getDueNanos());
+			onClaim(message.getSequence(), claimedAt);
+
+			if (random.nextDouble() < options.abandonRatio) {
+				abandoned.incrementAndGet();
+				continue;
+			}
+
+			if (options.processingTime > 0) {
+				sleep(options.processingTime);
+			}
+
+			try {
+				template.acknowledge(message);
+			} catch (RuntimeException e) {
+				errors.incrementAndGet();
+				continue;
+			}
+			claimToAck.record(System.nanoTime() - claimedAt);
+			onAcknowledge(message.getSequence());
+		}
+	}
+
+	private void onClaim(long seq, long claimedAt) {
+		Delivery delivery = deliveries.get(seq);
+		if (delivery == null) {
+			duplicates.incrementAndGet();
+			return;
+		}
+
+		synchronized (delivery) {
+			if (delivery.deliveries > 0) {
+				long leaseEnd = delivery.lastClaim + TimeUnit.SECONDS.toNanos(options.acknowledgePeriod) - LEASE_SLACK;
+				if (delivery.acknowledged || claimedAt < leaseEnd) {
+					duplicates.incrementAndGet();
+				} else {
+					redelivered.incrementAndGet();
+				}
+			}
+			delivery.deliveries++;
+			delivery.lastClaim = claimedAt;
+		}
+	}
+
+	private void onAcknowledge(long seq) {
+		Delivery delivery = deliveries.get(seq);
+		if (delivery == null) return;
+
+		synchronized (delivery) {
+			if (!delivery.acknowledged) {
+				delivery.acknowledged = true;
+				acknowledged.incrementAndGet();
+			}
+		}
+	}
+
+	private void report(String label, long start) {
+		double seconds = Math.max(1, System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("[%s] %.0fs put=%d (%.0f/s) claimed=%d acknowledged=%d (%.0f/s) abandoned=%d "
+						+ "redelivered=%d duplicates=%d errors=%d recoveredLeases=%d",
+				label, seconds, sequence.get(), sequence.get() / seconds, claimed.get(), acknowledged.get(),
+				acknowledged.get() / seconds, abandoned.get(), redelivered.get(), duplicates.get(), errors.get(),
+				template.getRecoveredLeases()));
+		System.out.println("  enqueue->claim " + enqueueToClaim);
+		System.out.println("  claim->ack     " + claimToAck);
+	}
+
+	private boolean verify() {
+		List<Long> lost = deliveries.entrySet().stream()
+				.filter(entry -> !entry.getValue().acknowledged)
+				.map(Map.Entry::getKey)
+				.sorted()
+				.collect(Collectors.toList());
+
+		if (!lost.isEmpty()) {
+			System.out.println("LOST " + lost.size() + " messages, first sequences: "
+					+ lost.subList(0, Math.min(REPORTED_SEQUENCES, lost.size())));
+		}
+		if (duplicates.get() > 0) {
+			System.out.println("DUPLICATE deliveries before lease expiry or after acknowledge: " + duplicates.get());
+		}
+
+		boolean passed = lost.isEmpty() && duplicates.get() == 0;
+		System.out.println(passed ? "PASSED" : "FAILED");
+		return passed;
+	}
+
+	private static List<Thread> start(String prefix, int count, Runnable task) {
+		List<Thread> threads = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			Thread thread = new Thread(task, prefix + i);
+			thread.start();
+			threads.add(thread);
+		}
+		return threads;
+	}
+
+	private static void join(List<Thread> threads) throws InterruptedException {
+		for (Thread thread : threads) {
+			thread.join();
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(Math.max(0, millis));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static final class Delivery {
+		private int deliveries;
+		private long lastClaim;
+		private boolean acknowledged;
+	}
+
+}
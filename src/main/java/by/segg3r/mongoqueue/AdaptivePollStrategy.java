@@ -0,0 +1,54 @@
+package by.segg3r.mongoqueue;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @see PollStrategy#adaptive(long, long)
+ */
+final class AdaptivePollStrategy implements PollStrategy {
+
+	/**
+	 * Weight of the latest poll in the hit rate.
+	 */
+	private static final double SMOOTHING = 0.1;
+
+	private final long min;
+	private final long max;
+
+	/**
+	 * Exponentially weighted moving average of poll hits. Lost concurrent updates only make it slightly less smooth.
+	 */
+	private volatile double hitRate;
+
+	AdaptivePollStrategy(long min, long max) {
+		if (min < 0 || max < min) {
+			throw new IllegalArgumentException("delays should satisfy 0 <= min <= max");
+		}
+
+		this.min = min;
+		this.max = max;
+	}
+
+	@Override
+	public long nextDelay(int attempt) {
+		long delay = min + Math.round((max - min) * (1 - hitRate));
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay - delay / 2 + 1);
+	}
+
+	@Override
+	public void onPoll(boolean hit) {
+		hitRate += SMOOTHING * ((hit ? 1 : 0) - hitRate);
+	}
+
+	/**
+	 * @return strategy with the same delays and its own hit rate.
+	 */
+	AdaptivePollStrategy copy() {
+		return new AdaptivePollStrategy(min, max);
+	}
+
+	double getHitRate() {
+		return hitRate;
+	}
+
+}
@@ -0,0 +1,193 @@
+package by.segg3r.mongoqueue;
+
+import com.mongodb.BasicDBObject;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import org.springframework.data.mongodb.core.query.Query;
+
+/**
+ * Asynchronous facade upon {@link MessageQueueTemplate}. Every operation runs on the given executor and completes the returned future.
+ * Waiting reads do not block a thread for the whole <b>waitDuration</b>: every poll attempt is a separate non waiting read of a single {@link PreparedRead},
+ * and the next attempt is scheduled after {@link ReadTimings#getPollStrategy()} delay, or, when {@link QueueOptions#isSignals() signals} are enabled,
+ * runs on the next signal of any partition, or after {@link QueueOptions#getSignalTimeout()} at the latest.
+ * Created with {@link MessageQueueTemplate#async(ScheduledExecutorService)}.
+ */
+public class AsyncMessageQueueTemplate {
+
+	private final MessageQueueTemplate template;
+	private final Executor executor;
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * @param template wrapped template.
+	 * @param executor executor of blocking database operations.
+	 * @param scheduler scheduler of poll attempts, which only hands them over to the executor.
+	 */
+	public AsyncMessageQueueTemplate(MessageQueueTemplate template, Executor executor, ScheduledExecutorService scheduler) {
+		this.template = template;
+		this.executor = executor;
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * @see MessageQueueTemplate#put(Message)
+	 */
+	public CompletableFuture<Void> putAsync(Message message) {
+		return CompletableFuture.runAsync(() -> template.put(message), executor);
+	}
+
+	/**
+	 * @see MessageQueueTemplate#putAll(Collection, BatchOptions)
+	 */
+	public CompletableFuture<BatchResult> putAllAsync(Collection<? extends Message> messages, BatchOptions options) {
+		return supplyAsync(() -> template.putAll(messages, options));
+	}
+
+	/**
+	 * Reads top message from the queue, using empty filter.
+	 * @see MessageQueueTemplate#read(Class, ReadTimings)
+	 * @return future of message from the top of the queue, or <b>null</b>, if queue stayed empty for <b>waitDuration</b>.
+	 */
+	public <T extends Message> CompletableFuture<T> readAsync(Class<T> clazz, ReadTimings timings) {
+		return readAsync(clazz, timings, new BasicDBObject());
+	}
+
+	/**
+	 * Reads top message from the queue, using query as a filter.
+	 * Cancelling the returned future stops polling, and releases a message read concurrently with the cancellation.
+	 * @see MessageQueueTemplate#read(Class, ReadTimings, Query)
+	 * @return future of message from the top of the queue, or <b>null</b>, if no matching message found for <b>waitDuration</b>.
+	 */
+	public <T extends Message> CompletableFuture<T> readAsync(Class<T> clazz, ReadTimings timings, Query query) {
+		return readAsync(clazz, timings, template.convertQuery(query));
+	}
+
+	/**
+	 * @see #readAsync(Class, ReadTimings, Query)
+	 */
+	public <T extends Message> CompletableFuture<T> readAsync(Class<T> clazz, ReadTimings timings, BasicDBObject query) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		ReadTimings attemptTimings = ReadTimings.defaultTimings()
+				.withAcknowledgePeriod(timings.getAcknowledgePeriod())
+				.withWaitDuration(0)
+				.withPollStrategy(timings.getPollStrategy());
+		PreparedRead<T> read;
+		try {
+			read = template.prepareRead(clazz, attemptTimings, query);
+		} catch (RuntimeException ex) {
+			future.completeExceptionally(ex);
+			return future;
+		}
+
+		//attempts run one after another, so they share the prepared read
+		attempt(future, read, attemptTimings, System.currentTimeMillis() + timings.getWaitDuration(), 1);
+		return future;
+	}
+
+	/**
+	 * @see MessageQueueTemplate#acknowledge(Message)
+	 */
+	public CompletableFuture<Void> acknowledgeAsync(Message message) {
+		return CompletableFuture.runAsync(() -> template.acknowledge(message), executor);
+	}
+
+	/**
+	 * @see MessageQueueTemplate#acknowledgeAll(Collection)
+	 */
+	public CompletableFuture<Long> acknowledgeAllAsync(Collection<? extends Message> messages) {
+		return supplyAsync(() -> template.acknowledgeAll(messages));
+	}
+
+	/**
+	 * @see MessageQueueTemplate#count()
+	 */
+	public CompletableFuture<Long> countAsync() {
+		return supplyAsync(template::count);
+	}
+
+	/**
+	 * @see MessageQueueTemplate#count(Query)
+	 */
+	public CompletableFuture<Long> countAsync(Query query) {
+		return supplyAsync(() -> template.count(query));
+	}
+
+	private <T extends Message> void attempt(CompletableFuture<T> future, PreparedRead<T> read, ReadTimings timings, long deadline, int attempt) {
+		executor.execute(() -> {
+			if (future.isDone()) return;
+
+			long[] signalVersions = template.signalVersions();
+			T message;
+			try {
+				message = read.read();
+			} catch (Throwable ex) {
+				future.completeExceptionally(ex);
+				return;
+			}
+
+			long remaining = deadline - System.currentTimeMillis();
+			if (message == null && remaining > 0) {
+				if (signalVersions != null) {
+					new SignalWait<>(future, read, timings, deadline, attempt + 1).await(signalVersions, remaining);
+					return;
+				}
+
+				long delay = Math.min(timings.getPollStrategy().nextDelay(attempt), remaining);
+				scheduler.schedule(() -> attempt(future, read, timings, deadline, attempt + 1), Math.max(delay, 0), TimeUnit.MILLISECONDS);
+				return;
+			}
+
+			if (!future.complete(message) && message != null) {
+				template.release(Collections.singletonList(message));
+			}
+		});
+	}
+
+	private <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier) {
+		return CompletableFuture.supplyAsync(supplier, executor);
+	}
+
+	/**
+	 * Next attempt of a read, run once by the first signal of any partition or by the signal timeout, whichever comes first.
+	 */
+	private final class SignalWait<T extends Message> implements Runnable {
+
+		private final CompletableFuture<T> future;
+		private final PreparedRead<T> read;
+		private final ReadTimings timings;
+		private final long deadline;
+		private final int attempt;
+		private final AtomicBoolean started = new AtomicBoolean();
+
+		private SignalWait(CompletableFuture<T> future, PreparedRead<T> read, ReadTimings timings, long deadline, int attempt) {
+			this.future = future;
+			this.read = read;
+			this.timings = timings;
+			this.deadline = deadline;
+			this.attempt = attempt;
+		}
+
+		private void await(long[] signalVersions, long remaining) {
+			template.addSignalListener(this);
+			scheduler.schedule(this, Math.min(template.getSignalTimeout(), remaining), TimeUnit.MILLISECONDS);
+			//a signal received before the listener was registered would be missed otherwise
+			if (template.isSignalled(signalVersions)) run();
+		}
+
+		@Override
+		public void run() {
+			if (!started.compareAndSet(false, true)) return;
+
+			template.removeSignalListener(this);
+			attempt(future, read, timings, deadline, attempt);
+		}
+
+	}
+
+}
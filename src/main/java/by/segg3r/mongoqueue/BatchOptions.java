@@ -0,0 +1,67 @@
+package by.segg3r.mongoqueue;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Class describing options for batch operations, such as {@link MessageQueue#sendBatch(List, java.util.Date, double, BatchOptions)}
+ * and {@link MessageQueueTemplate#putAll(Collection, BatchOptions)}.
+ * It is possible to specify {@link BatchOptions#chunkSize} and {@link BatchOptions#ordered} flag.
+ */
+public class BatchOptions {
+
+	private static final int DEFAULT_CHUNK_SIZE = 1000;
+
+	public static BatchOptions defaultOptions() {
+		return new BatchOptions()
+				.withChunkSize(DEFAULT_CHUNK_SIZE)
+				.withOrdered(false);
+	}
+
+	public static BatchOptions ordered() {
+		return defaultOptions()
+				.withOrdered(true);
+	}
+
+	public static BatchOptions unordered() {
+		return defaultOptions()
+				.withOrdered(false);
+	}
+
+	/**
+	 * Maximum number of documents sent to the database in a single bulk write.
+	 */
+	private int chunkSize;
+
+	/**
+	 * Whether documents should be written in order, stopping at the first failure,
+	 * or in any order, continuing after failures.
+	 */
+	private boolean ordered;
+
+	private BatchOptions() {
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public boolean isOrdered() {
+		return ordered;
+	}
+
+	public BatchOptions withChunkSize(int chunkSize) {
+		if (chunkSize <= 0) {
+			throw new IllegalArgumentException("chunk size must be positive");
+		}
+
+		this.chunkSize = chunkSize;
+		return this;
+	}
+
+	public BatchOptions withOrdered(boolean ordered) {
+		this.ordered = ordered;
+		return this;
+	}
+
+}
@@ -0,0 +1,87 @@
+package by.segg3r.mongoqueue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Outcome of a batch send. {@link BatchResult#getIds()} holds the id assigned to every message of the batch,
+ * in the order messages were given, and {@link BatchResult#getFailures()} holds the messages that were not stored.
+ */
+public class BatchResult {
+
+	/**
+	 * Error code of failures for messages that were never sent, because an ordered batch stopped before them.
+	 */
+	public static final int NOT_ATTEMPTED = -1;
+
+	private final List<ObjectId> ids;
+	private final List<Failure> failures = new ArrayList<>();
+	private int insertedCount;
+
+	public BatchResult(List<ObjectId> ids) {
+		this.ids = ids;
+	}
+
+	public List<ObjectId> getIds() {
+		return Collections.unmodifiableList(ids);
+	}
+
+	public List<Failure> getFailures() {
+		return Collections.unmodifiableList(failures);
+	}
+
+	public int getInsertedCount() {
+		return insertedCount;
+	}
+
+	public boolean isSuccessful() {
+		return failures.isEmpty();
+	}
+
+	void addInserted(int count) {
+		insertedCount += count;
+	}
+
+	void addFailure(Failure failure) {
+		failures.add(failure);
+	}
+
+	public static class Failure {
+
+		private final int index;
+		private final int code;
+		private final String message;
+
+		public Failure(int index, int code, String message) {
+			this.index = index;
+			this.code = code;
+			this.message = message;
+		}
+
+		/**
+		 * @return index of the failed message in the batch.
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * @return database error code, or {@link BatchResult#NOT_ATTEMPTED}.
+		 */
+		public int getCode() {
+			return code;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		public boolean isAttempted() {
+			return code != NOT_ATTEMPTED;
+		}
+	}
+
+}
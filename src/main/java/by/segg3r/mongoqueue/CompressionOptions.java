@@ -0,0 +1,96 @@
+package by.segg3r.mongoqueue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Class describing compression of payloads by {@link MessageQueueTemplate}.
+ * When encoded payload fields exceed {@link CompressionOptions#threshold}, they are stored as a single compressed binary field.
+ * Fields used in read queries and indexes should be listed in {@link CompressionOptions#uncompressedFields}, so they stay queryable.
+ * The layout of stored payloads depends only on these options, so all templates of a queue should share them.
+ * {@link MessageQueueTemplate#ensureIndex(MessageIndex)}, reads and counts reject fields which are not listed with {@link IllegalArgumentException},
+ * since messages with compressed payloads would never match them. <b>_class</b> and <b>_lane</b> are never compressed.
+ */
+public class CompressionOptions {
+
+	private static final int DEFAULT_THRESHOLD = 4096; // 4 kilobytes
+
+	public static CompressionOptions disabled() {
+		return new CompressionOptions()
+				.withEnabled(false)
+				.withThreshold(DEFAULT_THRESHOLD)
+				.withCompressor(PayloadCompressor.deflate())
+				.withUncompressedFields();
+	}
+
+	public static CompressionOptions deflate() {
+		return disabled()
+				.withEnabled(true);
+	}
+
+	/**
+	 * Whether payloads are compressed. Compressed payloads are always decompressed on read.
+	 */
+	private boolean enabled;
+
+	/**
+	 * Minimal size in bytes of encoded compressible fields to compress them.
+	 */
+	private int threshold;
+
+	/**
+	 * Compression algorithm.
+	 */
+	private PayloadCompressor compressor;
+
+	/**
+	 * Top-level payload fields stored as is.
+	 */
+	private Set<String> uncompressedFields;
+
+	private CompressionOptions() {
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	public PayloadCompressor getCompressor() {
+		return compressor;
+	}
+
+	public Set<String> getUncompressedFields() {
+		return uncompressedFields;
+	}
+
+	public CompressionOptions withEnabled(boolean enabled) {
+		this.enabled = enabled;
+		return this;
+	}
+
+	public CompressionOptions withThreshold(int threshold) {
+		if (threshold < 0) {
+			throw new IllegalArgumentException("threshold must not be negative");
+		}
+
+		this.threshold = threshold;
+		return this;
+	}
+
+	public CompressionOptions withCompressor(PayloadCompressor compressor) {
+		this.compressor = compressor;
+		return this;
+	}
+
+	public CompressionOptions withUncompressedFields(String... uncompressedFields) {
+		this.uncompressedFields = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(uncompressedFields)));
+		return this;
+	}
+
+}
@@ -0,0 +1,141 @@
+package by.segg3r.mongoqueue;
+
+import org.springframework.data.mongodb.core.query.Query;
+
+/**
+ * Class describing options for {@link MessageQueueTemplate#subscribe(Class, MessageHandler, ConsumerOptions)}.
+ * It is possible to specify {@link ConsumerOptions#concurrency}, read {@link ConsumerOptions#timings} and {@link ConsumerOptions#query},
+ * {@link ConsumerOptions#retryPolicy} of failed messages, {@link ConsumerOptions#drainTimeout}, lease heartbeat and usage of virtual threads.
+ */
+public class ConsumerOptions {
+
+	private static final int DEFAULT_CONCURRENCY = 1;
+	private static final long DEFAULT_DRAIN_TIMEOUT = 30000; // 30 seconds
+
+	public static ConsumerOptions defaultOptions() {
+		return new ConsumerOptions()
+				.withConcurrency(DEFAULT_CONCURRENCY)
+				.withTimings(ReadTimings.defaultTimings())
+				.withQuery(new Query())
+				.withRetryPolicy(null)
+				.withDrainTimeout(DEFAULT_DRAIN_TIMEOUT)
+				.withLeaseHeartbeat(false)
+				.withVirtualThreads(false);
+	}
+
+	public static ConsumerOptions withConcurrencyOf(int concurrency) {
+		return defaultOptions()
+				.withConcurrency(concurrency);
+	}
+
+	/**
+	 * Number of workers reading and handling messages in parallel.
+	 */
+	private int concurrency;
+
+	/**
+	 * Timings of reads done by each worker. Acknowledge period should cover handling of a message.
+	 */
+	private ReadTimings timings;
+
+	/**
+	 * Filter of consumed messages.
+	 */
+	private Query query;
+
+	/**
+	 * Policy of delays after which a message, failed by the handler, is given to workers again.
+	 * When null, {@link QueueOptions#getRetryPolicy()} of the template is used.
+	 */
+	private RetryPolicy retryPolicy;
+
+	/**
+	 * Period in milliseconds given to workers to finish handling of their messages on {@link MessageListenerContainer#close()}.
+	 */
+	private long drainTimeout;
+
+	/**
+	 * Whether leases of messages being handled should be renewed by a {@link LeaseHeartbeat}, every third of the acknowledge period.
+	 */
+	private boolean leaseHeartbeat;
+
+	/**
+	 * Whether workers should run on virtual threads. Ignored, when the JVM does not support them.
+	 */
+	private boolean virtualThreads;
+
+	private ConsumerOptions() {
+	}
+
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	public ReadTimings getTimings() {
+		return timings;
+	}
+
+	public Query getQuery() {
+		return query;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	public long getDrainTimeout() {
+		return drainTimeout;
+	}
+
+	public boolean isLeaseHeartbeat() {
+		return leaseHeartbeat;
+	}
+
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	public ConsumerOptions withConcurrency(int concurrency) {
+		if (concurrency <= 0) {
+			throw new IllegalArgumentException("concurrency must be positive");
+		}
+
+		this.concurrency = concurrency;
+		return this;
+	}
+
+	public ConsumerOptions withTimings(ReadTimings timings) {
+		this.timings = timings;
+		return this;
+	}
+
+	public ConsumerOptions withQuery(Query query) {
+		this.query = query;
+		return this;
+	}
+
+	public ConsumerOptions withRequeueDelay(long requeueDelay) {
+		return withRetryPolicy(RetryPolicy.fixed(requeueDelay));
+	}
+
+	public ConsumerOptions withRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+		return this;
+	}
+
+	public ConsumerOptions withDrainTimeout(long drainTimeout) {
+		this.drainTimeout = drainTimeout;
+		return this;
+	}
+
+	public ConsumerOptions withLeaseHeartbeat(boolean leaseHeartbeat) {
+		this.leaseHeartbeat = leaseHeartbeat;
+		return this;
+	}
+
+	public ConsumerOptions withVirtualThreads(boolean virtualThreads) {
+		this.virtualThreads = virtualThreads;
+		return this;
+	}
+
+}
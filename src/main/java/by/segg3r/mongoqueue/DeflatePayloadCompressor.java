@@ -0,0 +1,55 @@
+package by.segg3r.mongoqueue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+final class DeflatePayloadCompressor implements PayloadCompressor {
+
+	private static final int BUFFER_SIZE = 4096;
+
+	@Override
+	public byte[] compress(byte[] data) {
+		Deflater deflater = new Deflater();
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+
+			ByteArrayOutputStream output = new ByteArrayOutputStream(data.length / 2 + 16);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (!deflater.finished()) {
+				output.write(buffer, 0, deflater.deflate(buffer));
+			}
+
+			return output.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	@Override
+	public byte[] decompress(byte[] data) {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data);
+
+			ByteArrayOutputStream output = new ByteArrayOutputStream(data.length * 4);
+			byte[] buffer = new byte[BUFFER_SIZE];
+			while (!inflater.finished()) {
+				int inflated = inflater.inflate(buffer);
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new IllegalStateException("Compressed payload is truncated.");
+
+				output.write(buffer, 0, inflated);
+			}
+
+			return output.toByteArray();
+		} catch (DataFormatException e) {
+			throw new IllegalStateException("Compressed payload is corrupted.", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+}
@@ -0,0 +1,32 @@
+package by.segg3r.mongoqueue;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * @see PollStrategy#exponential(long, long)
+ */
+final class ExponentialPollStrategy implements PollStrategy {
+
+	private final long min;
+	private final long max;
+
+	ExponentialPollStrategy(long min, long max) {
+		if (min <= 0 || max < min) {
+			throw new IllegalArgumentException("delays should satisfy 0 < min <= max");
+		}
+
+		this.min = min;
+		this.max = max;
+	}
+
+	@Override
+	public long nextDelay(int attempt) {
+		long cap = min;
+		for (int i = 1; i < attempt && cap < max; i++) {
+			cap *= 2;
+		}
+
+		return ThreadLocalRandom.current().nextLong(Math.min(cap, max) + 1);
+	}
+
+}
@@ -0,0 +1,19 @@
+package by.segg3r.mongoqueue;
+
+/**
+ * @see PollStrategy#fixed(long)
+ */
+final class FixedPollStrategy implements PollStrategy {
+
+	private final long delay;
+
+	FixedPollStrategy(long delay) {
+		this.delay = delay;
+	}
+
+	@Override
+	public long nextDelay(int attempt) {
+		return delay;
+	}
+
+}
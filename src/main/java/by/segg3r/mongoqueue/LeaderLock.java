@@ -0,0 +1,65 @@
+package by.segg3r.mongoqueue;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoException;
+import java.util.Date;
+import java.util.Objects;
+import org.bson.types.ObjectId;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Lock document electing a single leader among nodes working with the same queue.
+ * The lock is held for {@link #ttl} milliseconds after each successful {@link #acquire()}, so a crashed leader
+ * is replaced once its lock expires.
+ */
+final class LeaderLock {
+
+	private static final int DUPLICATE_KEY = 11000;
+
+	private final DBCollection locks;
+	private final String name;
+	private final String owner = new ObjectId().toHexString();
+	private final long ttl;
+
+	LeaderLock(final DBCollection locks, final String name, final long ttl) {
+		Objects.requireNonNull(locks);
+		Objects.requireNonNull(name);
+
+		this.locks = locks;
+		this.name = name;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Acquires the lock, or prolongs it if it is already held by this node.
+	 *
+	 * @return whether this node is the leader
+	 */
+	boolean acquire() {
+		final long now = System.currentTimeMillis();
+		final BasicDBObject query = new BasicDBObject("_id", name)
+				.append("$or", asList(new BasicDBObject("owner", owner), new BasicDBObject("expires", new BasicDBObject("$lte", new Date(now)))));
+		final BasicDBObject update = new BasicDBObject("$set", new BasicDBObject("owner", owner).append("expires", new Date(now + ttl)));
+
+		try {
+			return locks.findAndModify(query, null, null, false, update, true, true) != null;
+		} catch (final MongoException ex) {
+			//upsert of an existing lock held by another node
+			if (ex.getCode() == DUPLICATE_KEY) {
+				return false;
+			}
+
+			throw ex;
+		}
+	}
+
+	/**
+	 * Releases the lock, if it is held by this node.
+	 */
+	void release() {
+		locks.remove(new BasicDBObject("_id", name).append("owner", owner));
+	}
+
+}
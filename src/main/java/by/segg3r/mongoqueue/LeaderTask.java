@@ -0,0 +1,87 @@
+package by.segg3r.mongoqueue;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Scheduled background work of a queue, such as the reset of abandoned messages or the promotion of due delayed messages.
+ * Only the node holding the task's {@link LeaderLock} runs the job.
+ */
+final class LeaderTask {
+
+	private static final Logger LOG = LoggerFactory.getLogger(LeaderTask.class);
+
+	private static final long STOP_TIMEOUT = 10000; // 10 seconds
+
+	private final String name;
+	private final LeaderLock lock;
+	private final IntSupplier job;
+	private final ScheduledExecutorService executor;
+	private final AtomicLong processed = new AtomicLong();
+
+	/**
+	 * @param name task name, used for its thread and log messages
+	 * @param lock lock electing the node running the job
+	 * @param interval delay in milliseconds between runs of the job
+	 * @param queue name of the queue, used for the thread name
+	 * @param job job returning number of processed messages
+	 */
+	LeaderTask(final String name, final LeaderLock lock, final long interval, final String queue, final IntSupplier job) {
+		this.name = name;
+		this.lock = lock;
+		this.job = job;
+		this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "mongo-queue-" + name + "-" + queue);
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		executor.scheduleWithFixedDelay(this::run, 0, interval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return number of messages processed by this task
+	 */
+	long getProcessed() {
+		return processed.get();
+	}
+
+	/**
+	 * Stops the task, and releases its lock once a running job has finished.
+	 * If the job does not finish in time, the lock is kept until it expires, so no other node runs the job concurrently.
+	 */
+	void stop() {
+		executor.shutdownNow();
+		try {
+			if (!executor.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				LOG.warn("Background {} did not stop in {} ms, its lock is left to expire", name, STOP_TIMEOUT);
+				return;
+			}
+		} catch (final InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return;
+		}
+
+		try {
+			lock.release();
+		} catch (final RuntimeException ex) {
+			LOG.warn("Could not release {} lock", name, ex);
+		}
+	}
+
+	private void run() {
+		try {
+			if (lock.acquire()) {
+				processed.addAndGet(job.getAsInt());
+			}
+		} catch (final RuntimeException ex) {
+			LOG.warn("Background {} failed", name, ex);
+		}
+	}
+
+}
@@ -0,0 +1,98 @@
+package by.segg3r.mongoqueue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Renews leases of tracked in-flight messages in background, all of them with a single batch every interval,
+ * so messages can be read with short acknowledge periods and still be handled for an unpredictable time.
+ * Messages whose lease could not be renewed, because it has expired or the message was acknowledged elsewhere, stop being tracked.
+ * Created with {@link MessageQueueTemplate#heartbeat(Duration, Duration)}.
+ */
+public class LeaseHeartbeat implements AutoCloseable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(LeaseHeartbeat.class);
+
+	private static final AtomicInteger HEARTBEAT_COUNTER = new AtomicInteger();
+
+	private final MessageQueueTemplate template;
+	private final Duration lease;
+	private final Map<String, Message> tracked = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService executor;
+
+	LeaseHeartbeat(MessageQueueTemplate template, Duration lease, Duration interval) {
+		this.template = template;
+		this.lease = lease;
+		this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "mongo-queue-heartbeat-" + HEARTBEAT_COUNTER.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		long intervalMillis = Math.max(interval.toMillis(), 1);
+		executor.scheduleWithFixedDelay(this::beat, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Starts renewing lease of given message. {@link Message#id} and {@link Message#lease} should be populated.
+	 */
+	public void track(Message message) {
+		if (message.getId() == null || message.getLease() == null)
+			throw new IllegalArgumentException("Could not find message id or lease.");
+
+		tracked.put(message.getId(), message);
+	}
+
+	/**
+	 * Stops renewing lease of given message, e.g. after it was acknowledged.
+	 */
+	public void untrack(Message message) {
+		tracked.remove(message.getId());
+	}
+
+	/**
+	 * @return number of tracked messages.
+	 */
+	public int getTracked() {
+		return tracked.size();
+	}
+
+	/**
+	 * Stops renewing leases. Leases of tracked messages expire after the lease duration.
+	 */
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private void beat() {
+		if (tracked.isEmpty()) return;
+
+		try {
+			List<Message> messages = new ArrayList<>(tracked.values());
+			if (template.extendLeases(messages, lease) < messages.size()) {
+				dropLost(messages);
+			}
+		} catch (RuntimeException ex) {
+			LOG.warn("Could not renew leases of {} messages", tracked.size(), ex);
+		}
+	}
+
+	private void dropLost(List<Message> messages) {
+		for (Message message : messages) {
+			if (!template.extendLease(message, lease)) {
+				tracked.remove(message.getId(), message);
+			}
+		}
+	}
+
+}
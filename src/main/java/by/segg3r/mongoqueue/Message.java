@@ -1,13 +1,28 @@
 package by.segg3r.mongoqueue;
 
+import org.springframework.data.annotation.Transient;
+
 /**
  * Base type to be put in {@link MessageQueueTemplate}. All messages should extend this type.
  * {@link Message#id} is a hex representation of {@link org.bson.types.ObjectId}.
+ * {@link Message#lease} is a hex representation of the lease token the message was read with. It is not stored in the queue.
+ * {@link Message#partition} is an index of the partition the message was read from. It is not stored in the queue.
+ * It is {@link Message#UNKNOWN_PARTITION} for messages which were not read by a template, which are looked up in every partition.
+ * {@link Message#deliveries} is a number of times the message was read, including the read it was received with.
+ * It is kept by the queue outside of the message.
  * Created by Pavel_Dzunovich on 6/16/2017.
  */
 public class Message {
 
+	public static final int UNKNOWN_PARTITION = -1;
+
 	private String id;
+	@Transient
+	private String lease;
+	@Transient
+	private int partition = UNKNOWN_PARTITION;
+	@Transient
+	private int deliveries;
 
 	public Message() {
 	}
@@ -24,4 +39,28 @@ public class Message {
 		this.id = id;
 	}
 
+	public String getLease() {
+		return lease;
+	}
+
+	public void setLease(String lease) {
+		this.lease = lease;
+	}
+
+	public int getPartition() {
+		return partition;
+	}
+
+	public void setPartition(int partition) {
+		this.partition = partition;
+	}
+
+	public int getDeliveries() {
+		return deliveries;
+	}
+
+	public void setDeliveries(int deliveries) {
+		this.deliveries = deliveries;
+	}
+
 }
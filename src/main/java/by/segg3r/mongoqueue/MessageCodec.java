@@ -0,0 +1,25 @@
+package by.segg3r.mongoqueue;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * Hand-written conversion of a {@link Message} type to and from queue payload, bypassing Spring converter.
+ * Registered in {@link MessageCodecs}. Should not write or read {@link Message#getId() id} and {@link Message#getLease() lease},
+ * which are handled by {@link MessageQueueTemplate}.
+ * @param <T> message type.
+ */
+public interface MessageCodec<T extends Message> {
+
+	/**
+	 * @param message message to encode. Never null.
+	 * @return payload document with message fields.
+	 */
+	BasicDBObject encode(T message);
+
+	/**
+	 * @param dbObject payload document, as encoded by {@link MessageCodec#encode(Message)} or by Spring converter.
+	 * @return decoded message.
+	 */
+	T decode(BasicDBObject dbObject);
+
+}
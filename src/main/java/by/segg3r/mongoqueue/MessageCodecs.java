@@ -0,0 +1,77 @@
+package by.segg3r.mongoqueue;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of {@link MessageCodec codecs} used by {@link MessageQueueTemplate} instead of Spring converter.
+ * Types without a codec are converted by Spring converter.
+ * With {@link MessageCodecs#reflective()} a codec with cached field accessors is built on first use of each message type,
+ * if the type consists of simple fields only (primitives and wrappers, strings, dates, object ids, enums and byte arrays).
+ */
+public class MessageCodecs {
+
+	public static MessageCodecs create() {
+		return new MessageCodecs(false);
+	}
+
+	public static MessageCodecs reflective() {
+		return new MessageCodecs(true);
+	}
+
+	private final boolean reflective;
+	private final Map<Class<?>, Optional<MessageCodec<?>>> codecs = new ConcurrentHashMap<>();
+
+	private MessageCodecs(boolean reflective) {
+		this.reflective = reflective;
+	}
+
+	/**
+	 * Registers hand-written codec for given message type. Subtypes are not affected.
+	 * @param clazz message type. Should not be null.
+	 * @param codec codec. Should not be null.
+	 * @return this registry.
+	 */
+	public <T extends Message> MessageCodecs register(Class<T> clazz, MessageCodec<T> codec) {
+		Objects.requireNonNull(clazz);
+		Objects.requireNonNull(codec);
+
+		codecs.put(clazz, Optional.of(codec));
+		return this;
+	}
+
+	/**
+	 * Registers codec with cached field accessors for given message type.
+	 * @param clazz message type. Should not be null.
+	 * @return this registry.
+	 * @throws IllegalArgumentException if the type has fields other than simple ones or could not be instantiated.
+	 */
+	public <T extends Message> MessageCodecs register(Class<T> clazz) {
+		return register(clazz, new ReflectiveMessageCodec<>(clazz));
+	}
+
+	@SuppressWarnings("unchecked")
+	<T> MessageCodec<Message> find(Class<T> clazz) {
+		Optional<MessageCodec<?>> codec = codecs.get(clazz);
+		if (codec == null) {
+			codec = codecs.computeIfAbsent(clazz, this::build);
+		}
+
+		return (MessageCodec<Message>) codec.orElse(null);
+	}
+
+	@SuppressWarnings("unchecked")
+	private Optional<MessageCodec<?>> build(Class<?> clazz) {
+		if (!reflective || !Message.class.isAssignableFrom(clazz))
+			return Optional.empty();
+
+		try {
+			return Optional.of(new ReflectiveMessageCodec<>((Class<? extends Message>) clazz));
+		} catch (IllegalArgumentException e) {
+			return Optional.empty();
+		}
+	}
+
+}
@@ -0,0 +1,13 @@
+package by.segg3r.mongoqueue;
+
+/**
+ * Handler of messages consumed by {@link MessageListenerContainer}.
+ * Message is acknowledged when the handler returns, and requeued when it throws.
+ * @param <T> message type.
+ */
+@FunctionalInterface
+public interface MessageHandler<T extends Message> {
+
+	void handle(T message) throws Exception;
+
+}
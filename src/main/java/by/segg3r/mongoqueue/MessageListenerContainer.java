@@ -0,0 +1,190 @@
+package by.segg3r.mongoqueue;
+
+import com.mongodb.BasicDBObject;
+import java.time.Duration;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Container of workers, consuming messages of {@link MessageQueueTemplate} with a {@link MessageHandler}.
+ * Each worker reads a message, passes it to the handler and acknowledges it, or requeues it with a delay of
+ * {@link ConsumerOptions#getRetryPolicy()}, or {@link QueueOptions#getRetryPolicy()} when it is not set, if the handler throws.
+ * Created with {@link MessageQueueTemplate#subscribe(Class, MessageHandler, ConsumerOptions)}.
+ * @param <T> message type.
+ */
+public class MessageListenerContainer<T extends Message> implements AutoCloseable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MessageListenerContainer.class);
+
+	private static final long READ_FAILURE_DELAY = 1000; // 1 second
+	private static final AtomicInteger CONTAINER_COUNTER = new AtomicInteger();
+
+	private final MessageQueueTemplate template;
+	private final Class<T> clazz;
+	private final MessageHandler<T> handler;
+	private final ConsumerOptions options;
+	private final BasicDBObject query;
+	private final ExecutorService executor;
+	private final LeaseHeartbeat heartbeat;
+
+	private final AtomicLong handled = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private volatile boolean running = true;
+
+	MessageListenerContainer(MessageQueueTemplate template, Class<T> clazz, MessageHandler<T> handler,
+			ConsumerOptions options, BasicDBObject query) {
+		this.template = template;
+		this.clazz = clazz;
+		this.handler = handler;
+		this.options = options;
+		this.query = query;
+		this.heartbeat = options.isLeaseHeartbeat()
+				? template.heartbeat(Duration.ofSeconds(options.getTimings().getAcknowledgePeriod()))
+				: null;
+		this.executor = createExecutor(options);
+
+		for (int i = 0; i < options.getConcurrency(); i++) {
+			executor.execute(this::work);
+		}
+		executor.shutdown();
+	}
+
+	/**
+	 * @return number of messages handled and acknowledged.
+	 */
+	public long getHandled() {
+		return handled.get();
+	}
+
+	/**
+	 * @return number of messages failed by the handler and requeued.
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Stops reading new messages. Workers finish handling of their current messages and exit.
+	 */
+	public void stop() {
+		running = false;
+	}
+
+	/**
+	 * Waits for all workers to exit after {@link #stop()}.
+	 * @return whether all workers exited before timeout.
+	 */
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return executor.awaitTermination(timeout, unit);
+	}
+
+	/**
+	 * Stops the container and waits {@link ConsumerOptions#getDrainTimeout()} for workers to drain,
+	 * interrupting the ones which did not finish by then.
+	 */
+	@Override
+	public void close() {
+		stop();
+		try {
+			if (!awaitTermination(options.getDrainTimeout(), TimeUnit.MILLISECONDS)) {
+				LOG.warn("Consumers of {} did not finish in {} ms, interrupting", clazz.getName(), options.getDrainTimeout());
+				executor.shutdownNow();
+			}
+		} catch (InterruptedException ex) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		} finally {
+			if (heartbeat != null) heartbeat.close();
+		}
+	}
+
+	private void work() {
+		PreparedRead<T> read = template.prepareRead(clazz, options.getTimings(), query);
+		while (running) {
+			T message;
+			try {
+				message = read.read();
+			} catch (RuntimeException ex) {
+				if (!running) return;
+
+				LOG.warn("Could not read message of {}, retrying in {} ms", clazz.getName(), READ_FAILURE_DELAY, ex);
+				if (!pause(READ_FAILURE_DELAY)) return;
+				continue;
+			}
+
+			if (message != null) {
+				handle(message);
+			}
+		}
+	}
+
+	private void handle(T message) {
+		if (heartbeat != null) heartbeat.track(message);
+		try {
+			handler.handle(message);
+		} catch (Exception ex) {
+			failed.incrementAndGet();
+			RetryPolicy retryPolicy = options.getRetryPolicy() != null ? options.getRetryPolicy() : template.getRetryPolicy();
+			long delay = retryPolicy.delay(message.getDeliveries());
+			LOG.warn("Handler failed on message {} delivered {} times, requeueing it in {} ms", message.getId(), message.getDeliveries(), delay, ex);
+			requeue(message, delay);
+			return;
+		} finally {
+			if (heartbeat != null) heartbeat.untrack(message);
+		}
+
+		try {
+			template.acknowledge(message);
+			handled.incrementAndGet();
+		} catch (RuntimeException ex) {
+			LOG.error("Could not acknowledge message {}, it will be given again after its lease expires", message.getId(), ex);
+		}
+	}
+
+	private void requeue(T message, long delay) {
+		try {
+			template.requeue(message, new Date(System.currentTimeMillis() + delay));
+		} catch (RuntimeException ex) {
+			LOG.error("Could not requeue message {}, it will be given again after its lease expires", message.getId(), ex);
+		}
+	}
+
+	private static boolean pause(long delay) {
+		try {
+			Thread.sleep(delay);
+			return true;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private static ExecutorService createExecutor(ConsumerOptions options) {
+		if (options.isVirtualThreads()) {
+			try {
+				return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (ReflectiveOperationException ex) {
+				LOG.info("Virtual threads are not supported by this JVM, using platform threads");
+			}
+		}
+
+		int container = CONTAINER_COUNTER.incrementAndGet();
+		AtomicInteger worker = new AtomicInteger();
+		return Executors.newFixedThreadPool(options.getConcurrency(), runnable -> {
+			Thread thread = new Thread(runnable, "mongo-queue-consumer-" + container + "-" + worker.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+}
@@ -0,0 +1,174 @@
+package by.segg3r.mongoqueue;
+
+import com.mongodb.BasicDBObject;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link Publisher} of queue messages, claiming exactly as many messages as subscribers requested.
+ * Every subscription claims and emits messages on its own thread, and never completes until cancelled.
+ * Created with {@link MessageQueueTemplate#stream(Class, org.springframework.data.mongodb.core.query.Query, StreamOptions)}.
+ * @param <T> message type.
+ */
+class MessagePublisher<T extends Message> implements Publisher<T> {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MessagePublisher.class);
+
+	private static final AtomicInteger SUBSCRIPTION_COUNTER = new AtomicInteger();
+
+	private final MessageQueueTemplate template;
+	private final Class<T> clazz;
+	private final BasicDBObject query;
+	private final StreamOptions options;
+
+	MessagePublisher(MessageQueueTemplate template, Class<T> clazz, BasicDBObject query, StreamOptions options) {
+		this.template = template;
+		this.clazz = clazz;
+		this.query = query;
+		this.options = options;
+	}
+
+	@Override
+	public void subscribe(Subscriber<? super T> subscriber) {
+		Objects.requireNonNull(subscriber);
+
+		MessageSubscription subscription = new MessageSubscription(subscriber);
+		subscription.executor.execute(() -> subscriber.onSubscribe(subscription));
+	}
+
+	/**
+	 * Adaptive strategies keep the hit rate of their reads, so every subscription gets its own one,
+	 * and an idle subscription does not slow down polls of a busy one.
+	 */
+	private static PollStrategy ownPollStrategy(PollStrategy pollStrategy) {
+		return pollStrategy instanceof AdaptivePollStrategy ? ((AdaptivePollStrategy) pollStrategy).copy() : pollStrategy;
+	}
+
+	private class MessageSubscription implements Subscription {
+
+		private final Subscriber<? super T> subscriber;
+		private final ScheduledExecutorService executor;
+		private final ReadTimings claimTimings;
+		private final AtomicLong demand = new AtomicLong();
+		private volatile boolean cancelled;
+
+		// accessed on the subscription thread only
+		private ScheduledFuture<?> pendingPoll;
+		private int emptyPolls;
+
+		MessageSubscription(Subscriber<? super T> subscriber) {
+			this.subscriber = subscriber;
+			this.claimTimings = ReadTimings.defaultTimings()
+					.withAcknowledgePeriod(options.getTimings().getAcknowledgePeriod())
+					.withWaitDuration(0)
+					.withPollStrategy(ownPollStrategy(options.getTimings().getPollStrategy()));
+			this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "mongo-queue-stream-" + SUBSCRIPTION_COUNTER.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+
+		@Override
+		public void request(long n) {
+			if (cancelled) return;
+
+			if (n <= 0) {
+				execute(() -> fail(new IllegalArgumentException("Requested number of messages must be positive, but was " + n)));
+				return;
+			}
+
+			demand.getAndUpdate(current -> current + n < 0 ? Long.MAX_VALUE : current + n);
+			execute(this::drain);
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			executor.shutdown();
+		}
+
+		private void drain() {
+			if (pendingPoll != null) {
+				pendingPoll.cancel(false);
+				pendingPoll = null;
+			}
+
+			while (!cancelled && demand.get() > 0) {
+				List<T> messages;
+				try {
+					int max = (int) Math.min(demand.get(), options.getBatchSize());
+					messages = template.readBatch(clazz, max, claimTimings, query);
+				} catch (RuntimeException ex) {
+					fail(ex);
+					return;
+				}
+
+				if (messages.isEmpty()) {
+					long delay = claimTimings.getPollStrategy().nextDelay(++emptyPolls);
+					pendingPoll = executor.schedule(this::drain, Math.max(delay, 0), TimeUnit.MILLISECONDS);
+					return;
+				}
+
+				emptyPolls = 0;
+				for (int i = 0; i < messages.size(); i++) {
+					if (cancelled) {
+						template.release(messages.subList(i, messages.size()));
+						return;
+					}
+
+					emit(messages.get(i));
+				}
+			}
+		}
+
+		private void emit(T message) {
+			demand.decrementAndGet();
+			try {
+				subscriber.onNext(message);
+			} catch (Throwable ex) {
+				LOG.warn("Subscriber failed on message {}, releasing it and cancelling subscription", message.getId(), ex);
+				template.release(Collections.singletonList(message));
+				cancel();
+				return;
+			}
+
+			if (options.isAutoAcknowledge()) {
+				try {
+					template.acknowledge(message);
+				} catch (RuntimeException ex) {
+					fail(ex);
+				}
+			}
+		}
+
+		private void fail(Throwable ex) {
+			if (cancelled) return;
+
+			cancel();
+			subscriber.onError(ex);
+		}
+
+		private void execute(Runnable runnable) {
+			try {
+				executor.execute(runnable);
+			} catch (RejectedExecutionException ex) {
+				// cancelled concurrently
+			}
+		}
+	}
+
+}
@@ -1,26 +1,118 @@
 package by.segg3r.mongoqueue;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
 import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.CommandResult;
 import com.mongodb.DBObject;
-import java.util.Calendar;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
-import java.util.UUID;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Direct rip-off from https://github.com/gaillard/mongo-queue-java. Thank you very much!
  */
-public final class MessageQueue {
+public final class MessageQueue implements AutoCloseable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(MessageQueue.class);
+	private static final int MAX_INDEX_NAME_LENGTH = 64;
+	private static final int INDEX_NAME_DIGEST_LENGTH = 16;
+	//indexes known to exist by full collection name, shared by all queues of this JVM
+	private static final ConcurrentMap<String, Set<BasicDBObject>> ENSURED_INDEXES = new ConcurrentHashMap<>();
+	private static final int DUPLICATE_KEY = 11000;
+
+	static final String STRIPE_FIELD = "stripe";
+	private static final BasicDBObject SORT = new BasicDBObject("priority", 1).append("created", 1);
+	private static final BasicDBObject FIELDS = new BasicDBObject("payload", 1).append("created", 1).append("deliveries", 1);
+	private static final BasicDBObject ID_FIELD = new BasicDBObject("_id", 1);
 
 	private final DBCollection collection;
+	private final QueueOptions options;
+	private final QueueSignals signals;
+	private final LeaderTask reaper;
+	private final LeaderTask promoter;
+	private final AtomicBoolean closed = new AtomicBoolean();
+	private final QueueMetrics metrics;
+	private final QueueCounters counters;
+	private final DBCollection deadLetters;
+	private final DBCollection delayed;
 
 	public MessageQueue(final DBCollection collection) {
+		this(collection, QueueOptions.defaultOptions());
+	}
+
+	public MessageQueue(final DBCollection collection, final QueueOptions options) {
 		Objects.requireNonNull(collection);
+		Objects.requireNonNull(options);
 
 		this.collection = collection;
+		this.options = options;
+		this.metrics = options.getMetrics();
+		this.signals = options.isSignals() ? QueueSignals.forCollection(collection, options.getSignalCollectionSize()) : null;
+		this.counters = options.isCounters()
+				? new QueueCounters(collection.getDB().getCollection(collection.getName() + ".counters"), options.getCounterFields())
+				: null;
+		this.deadLetters = collection.getDB().getCollection(collection.getName() + ".dead");
+		this.delayed = options.getDelayThreshold() > 0 ? collection.getDB().getCollection(collection.getName() + ".delayed") : null;
+
+		//background work starts last, since it uses the fields above right away
+		final DBCollection locks = collection.getDB().getCollection(collection.getName() + ".locks");
+		this.reaper = options.getReaperInterval() > 0
+				? new LeaderTask("reaper",
+						new LeaderLock(locks, "reaper", 3 * options.getReaperInterval()),
+						options.getReaperInterval(),
+						collection.getFullName(),
+						this::resetStuck)
+				: null;
+		this.promoter = delayed != null
+				? new LeaderTask("promoter",
+						new LeaderLock(locks, "promoter", 3 * options.getPromoterInterval()),
+						options.getPromoterInterval(),
+						collection.getFullName(),
+						this::promoteDelayed)
+				: null;
+	}
+
+	/**
+	 * Stop background work of this queue, such as the reaper of abandoned messages, the promoter of delayed messages
+	 * and tailing of signals when no other queue uses them
+	 */
+	@Override
+	public void close() {
+		if (!closed.compareAndSet(false, true)) {
+			return;
+		}
+		if (reaper != null) {
+			reaper.stop();
+		}
+		if (promoter != null) {
+			promoter.stop();
+		}
+		if (signals != null) {
+			signals.release();
+		}
 	}
 
 	/**
@@ -51,6 +143,9 @@ public final class MessageQueue {
 
 		//using general rule: equality, sort, range or more equality tests in that order for index
 		final BasicDBObject completeIndex = new BasicDBObject("running", 1);
+		if (options.getClaimSpread() > 1) {
+			completeIndex.append(STRIPE_FIELD, 1);
+		}
 
 		for (final Entry<String, Object> field : beforeSort.entrySet()) {
 			if (!Objects.equals(field.getValue(), 1) && !Objects.equals(field.getValue(), -1)) {
@@ -72,8 +167,26 @@ public final class MessageQueue {
 
 		completeIndex.append("earliestGet", 1);
 
-		ensureIndex(completeIndex);//main query in Get()
-		ensureIndex(new BasicDBObject("running", 1).append("resetTimestamp", 1));//for the stuck messages query in Get()
+		final boolean ensuredNow = ensureIndexes(collection, completeIndex,//main query in Get()
+				new BasicDBObject("running", 1).append("resetTimestamp", 1));//for the stuck messages query in Get()
+		if (delayed != null) {
+			ensureIndexes(delayed, new BasicDBObject("earliestGet", 1));//for the due messages query of the promoter
+		}
+		if (!ensuredNow) {
+			//checked when the index was ensured first
+			return;
+		}
+
+		final BasicDBObject sampleQuery = new BasicDBObject();
+		for (final String field : beforeSort.keySet()) {
+			sampleQuery.append(field, null);
+		}
+		for (final String field : afterSort.keySet()) {
+			sampleQuery.append(field, null);
+		}
+		if (!getUsesIndex(sampleQuery)) {
+			LOG.warn("get() on {} with fields {} does not use index {}, and will scan or sort in memory", collection.getFullName(), sampleQuery.keySet(), completeIndex);
+		}
 	}
 
 	/**
@@ -99,7 +212,39 @@ public final class MessageQueue {
 			completeIndex.append("payload." + field.getKey(), field.getValue());
 		}
 
-		ensureIndex(completeIndex);
+		ensureIndexes(collection, completeIndex);
+	}
+
+	/**
+	 * Check with explain whether get() with given query shape is served by an index, without a collection scan or an in memory sort
+	 *
+	 * @param query query where top level fields do not contain operators, as given to get(). Should not be null
+	 * @return true if winning plan uses an index both for the filter and the sort
+	 */
+	public boolean getUsesIndex(final BasicDBObject query) {
+		final DBObject explain = collection.find(prepareGet(query).query(new Date())).sort(SORT).limit(1).explain();
+		return !hasStage(explain, "COLLSCAN") && !hasStage(explain, "SORT");
+	}
+
+	/**
+	 * Check with explain whether count() with given query shape is served by an index, without a collection scan
+	 *
+	 * @param query query where top level fields do not contain operators, as given to count(). Should not be null
+	 * @return true if winning plan uses an index
+	 */
+	public boolean countUsesIndex(final BasicDBObject query) {
+		return !hasStage(collection.find(countQuery(query, null)).explain(), "COLLSCAN");
+	}
+
+	/**
+	 * Check with explain whether count() with given query shape and running flag is served by an index, without a collection scan
+	 *
+	 * @param query query where top level fields do not contain operators, as given to count(). Should not be null
+	 * @param running running flag given to count()
+	 * @return true if winning plan uses an index
+	 */
+	public boolean countUsesIndex(final BasicDBObject query, final boolean running) {
+		return !hasStage(collection.find(countQuery(query, running)).explain(), "COLLSCAN");
 	}
 
 	/**
@@ -134,80 +279,338 @@ public final class MessageQueue {
 	 * invalid {$and: [{...}, {...}]}. Should not be null.
 	 * @param resetDuration duration in seconds before this message is considered abandoned and will be given with another call to get()
 	 * @param waitDuration duration in milliseconds to keep polling before returning null
-	 * @param pollDuration duration in milliseconds between poll attempts
+	 * @param pollDuration duration in milliseconds between poll attempts. Not used when signals are enabled in {@link QueueOptions},
+	 * readers wait for a signal up to {@link QueueOptions#getSignalTimeout()} instead
+	 * @return message or null
+	 */
+	public BasicDBObject get(final BasicDBObject query, final int resetDuration, final int waitDuration, final long pollDuration) {
+		return get(query, resetDuration, waitDuration, PollStrategy.fixed(pollDuration));
+	}
+
+	/**
+	 * Get a non running message from queue
+	 *
+	 * @param query query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
+	 * invalid {$and: [{...}, {...}]}. Should not be null.
+	 * @param resetDuration duration in seconds before this message is considered abandoned and will be given with another call to get()
+	 * @param waitDuration duration in milliseconds to keep polling before returning null
+	 * @param pollStrategy strategy of delays between poll attempts. Should not be null. Not used when signals are enabled in {@link QueueOptions},
+	 * readers wait for a signal up to {@link QueueOptions#getSignalTimeout()} instead
+	 * @return message or null
+	 */
+	public BasicDBObject get(final BasicDBObject query, final int resetDuration, final int waitDuration, final PollStrategy pollStrategy) {
+		return prepareGet(query).get(resetDuration, waitDuration, pollStrategy);
+	}
+
+	/**
+	 * Prepare get() with given query, to be called repeatedly without rebuilding the query
+	 *
+	 * @param query query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
+	 * invalid {$and: [{...}, {...}]}. Should not be null.
+	 * @return prepared get, to be used by a single thread
+	 */
+	public PreparedGet prepareGet(final BasicDBObject query) {
+		return new PreparedGet(this, query, options.getClaimSpread());
+	}
+
+	BasicDBObject get(final PreparedGet prepared, final int resetDuration, final int waitDuration, final PollStrategy pollStrategy) {
+		Objects.requireNonNull(pollStrategy);
+
+		final long start = System.nanoTime();
+		resetStuckWithoutReaper();
+
+		final ObjectId lease = new ObjectId();
+		final BasicDBObject update = prepared.update(resetTimestamp(resetDuration), lease);
+		final long end = System.currentTimeMillis() + waitDuration;
+
+		long slept = 0;
+		for (int attempt = 1; ; ++attempt) {
+			final long signalVersion = signalVersion();
+			final BasicDBObject message = findAndClaim(prepared, update);
+			pollStrategy.onPoll(message != null);
+			if (message != null) {
+				metrics.recordGet(1, attempt, attempt - 1, slept, System.nanoTime() - start);
+				return claimed(message, lease);
+			}
+
+			if (System.currentTimeMillis() >= end) {
+				metrics.recordGet(0, attempt, attempt, slept, System.nanoTime() - start);
+				return null;
+			}
+
+			slept += await(signalVersion, pollStrategy.nextDelay(attempt), end);
+		}
+	}
+
+	/**
+	 * Claim a single message without waiting, resetting abandoned messages or recording metrics, for reads polling several queues
+	 *
 	 * @return message or null
+	 * @see MessageQueueTemplate
+	 */
+	BasicDBObject claim(final PreparedGet prepared, final int resetDuration) {
+		final ObjectId lease = new ObjectId();
+		final BasicDBObject message = findAndClaim(prepared, prepared.update(resetTimestamp(resetDuration), lease));
+		return message != null ? claimed(message, lease) : null;
+	}
+
+	/**
+	 * Claim up to max messages without waiting, resetting abandoned messages or recording metrics, for reads polling several queues
+	 *
+	 * @return messages, or empty list
+	 * @see MessageQueueTemplate
 	 */
-	public BasicDBObject get(final BasicDBObject query, final int resetDuration, final int waitDuration, long pollDuration) {
+	List<BasicDBObject> claimBatch(final PreparedGet prepared, final int max, final int resetDuration) {
+		return claim(prepared.query(new Date()), max, resetTimestamp(resetDuration));
+	}
+
+	/**
+	 * @return whether a message with given id is in queue or among its delayed messages
+	 */
+	boolean contains(final ObjectId id) {
+		final BasicDBObject query = new BasicDBObject("_id", id);
+		return collection.findOne(query, ID_FIELD) != null || (delayed != null && delayed.findOne(query, ID_FIELD) != null);
+	}
+
+	/**
+	 * Reset abandoned messages, unless the reaper is enabled, as get() does before polling
+	 */
+	void resetStuckWithoutReaper() {
+		if (reaper == null) {
+			resetStuck();
+		}
+	}
+
+	void recordGet(final int messages, final int attempts, final int emptyPolls, final long sleptNanos, final long nanos) {
+		metrics.recordGet(messages, attempts, emptyPolls, sleptNanos, nanos);
+	}
+
+	/**
+	 * @return signals of this queue, or null if they are not enabled in {@link QueueOptions}
+	 */
+	QueueSignals signals() {
+		return signals;
+	}
+
+	/**
+	 * Get up to max non running messages from queue with a wait of 3 seconds and poll of 200 milliseconds
+	 *
+	 * @param query query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
+	 * invalid {$and: [{...}, {...}]}. Should not be null.
+	 * @param max maximum number of messages to get. Should be positive
+	 * @param resetDuration duration in seconds before these messages are considered abandoned and will be given with another call to get()
+	 * @return messages, or empty list
+	 */
+	public List<BasicDBObject> getBatch(final BasicDBObject query, final int max, final int resetDuration) {
+		return getBatch(query, max, resetDuration, 3000, 200);
+	}
+
+	/**
+	 * Get up to max non running messages from queue with a poll of 200 milliseconds
+	 *
+	 * @param query query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
+	 * invalid {$and: [{...}, {...}]}. Should not be null.
+	 * @param max maximum number of messages to get. Should be positive
+	 * @param resetDuration duration in seconds before these messages are considered abandoned and will be given with another call to get()
+	 * @param waitDuration duration in milliseconds to keep polling before returning empty list
+	 * @return messages, or empty list
+	 */
+	public List<BasicDBObject> getBatch(final BasicDBObject query, final int max, final int resetDuration, final int waitDuration) {
+		return getBatch(query, max, resetDuration, waitDuration, 200);
+	}
+
+	/**
+	 * Get up to max non running messages from queue with a fixed poll
+	 *
+	 * @param query query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
+	 * invalid {$and: [{...}, {...}]}. Should not be null.
+	 * @param max maximum number of messages to get. Should be positive
+	 * @param resetDuration duration in seconds before these messages are considered abandoned and will be given with another call to get()
+	 * @param waitDuration duration in milliseconds to keep polling before returning empty list
+	 * @param pollDuration duration in milliseconds between poll attempts. Not used when signals are enabled in {@link QueueOptions}
+	 * @return messages, or empty list
+	 */
+	public List<BasicDBObject> getBatch(final BasicDBObject query, final int max, final int resetDuration, final int waitDuration, final long pollDuration) {
+		return getBatch(query, max, resetDuration, waitDuration, PollStrategy.fixed(pollDuration));
+	}
+
+	/**
+	 * Get up to max non running messages from queue, in the same order as get() would return them.
+	 * Candidates are leased with a single update tagging them with a new lease token, and only the messages
+	 * carrying this token afterwards are returned, so messages taken by concurrent callers in between are skipped.
+	 *
+	 * @param query query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
+	 * invalid {$and: [{...}, {...}]}. Should not be null.
+	 * @param max maximum number of messages to get. Should be positive
+	 * @param resetDuration duration in seconds before these messages are considered abandoned and will be given with another call to get()
+	 * @param waitDuration duration in milliseconds to keep polling before returning empty list
+	 * @param pollStrategy strategy of delays between poll attempts. Should not be null. Not used when signals are enabled in {@link QueueOptions}
+	 * @return messages, or empty list
+	 */
+	public List<BasicDBObject> getBatch(final BasicDBObject query, final int max, final int resetDuration, final int waitDuration, final PollStrategy pollStrategy) {
 		Objects.requireNonNull(query);
+		Objects.requireNonNull(pollStrategy);
+		if (max <= 0) {
+			throw new IllegalArgumentException("max must be positive");
+		}
 
-		//reset stuck messages
-		collection.update(new BasicDBObject("running", true).append("resetTimestamp", new BasicDBObject("$lte", new Date())),
-				new BasicDBObject("$set", new BasicDBObject("running", false)),
-				false,
-				true);
+		final long start = System.nanoTime();
+		resetStuckWithoutReaper();
+
+		final PreparedGet prepared = prepareGet(query);
+		final Date resetTimestamp = resetTimestamp(resetDuration);
+		final long end = System.currentTimeMillis() + waitDuration;
+
+		long slept = 0;
+		for (int attempt = 1; ; ++attempt) {
+			final long signalVersion = signalVersion();
+			final List<BasicDBObject> messages = claim(prepared.query(new Date()), max, resetTimestamp);
+			pollStrategy.onPoll(!messages.isEmpty());
+			if (!messages.isEmpty()) {
+				metrics.recordGet(messages.size(), attempt, attempt - 1, slept, System.nanoTime() - start);
+				return messages;
+			}
 
-		final BasicDBObject builtQuery = new BasicDBObject("running", false);
-		for (final Entry<String, Object> field : query.entrySet()) {
-			builtQuery.append("payload." + field.getKey(), field.getValue());
+			if (System.currentTimeMillis() >= end) {
+				metrics.recordGet(0, attempt, attempt, slept, System.nanoTime() - start);
+				return messages;
+			}
+
+			slept += await(signalVersion, pollStrategy.nextDelay(attempt), end);
 		}
+	}
 
-		builtQuery.append("earliestGet", new BasicDBObject("$lte", new Date()));
+	/**
+	 * Reset abandoned messages, which were not acknowledged before their resetTimestamp, so they can be given with another call to get().
+	 * Abandoned messages delivered {@link QueueOptions#getMaxDeliveries()} times are moved to dead letters instead.
+	 * Called by every get() unless the reaper is enabled in {@link QueueOptions}
+	 *
+	 * @return number of reset messages
+	 */
+	public int resetStuck() {
+		final long start = System.nanoTime();
+		final Date now = new Date();
+		if (options.getMaxDeliveries() > 0) {
+			deadLetter(new BasicDBObject("running", true)
+					.append("resetTimestamp", new BasicDBObject("$lte", now))
+					.append("deliveries", new BasicDBObject("$gte", options.getMaxDeliveries())), "lease expired");
+		}
 
-		final Calendar calendar = Calendar.getInstance();
+		final int reset = collection.update(new BasicDBObject("running", true).append("resetTimestamp", new BasicDBObject("$lte", now)),
+				new BasicDBObject("$set", new BasicDBObject("running", false)),
+				false,
+				true).getN();
 
-		calendar.add(Calendar.SECOND, resetDuration);
-		final Date resetTimestamp = calendar.getTime();
+		metrics.recordReset(reset, System.nanoTime() - start);
+		return reset;
+	}
 
-		final BasicDBObject sort = new BasicDBObject("priority", 1).append("created", 1);
-		final BasicDBObject update = new BasicDBObject("$set", new BasicDBObject("running", true).append("resetTimestamp", resetTimestamp));
-		final BasicDBObject fields = new BasicDBObject("payload", 1);
+	/**
+	 * Number of abandoned messages reset by the reaper of this queue
+	 *
+	 * @return number of reset messages, or 0 if the reaper is not enabled in {@link QueueOptions}
+	 */
+	public long getRecoveredLeases() {
+		return reaper != null ? reaper.getProcessed() : 0;
+	}
 
-		calendar.setTimeInMillis(System.currentTimeMillis());
-		calendar.add(Calendar.MILLISECOND, waitDuration);
-		final Date end = calendar.getTime();
+	/**
+	 * Number of delayed messages moved to queue by the promoter of this queue
+	 *
+	 * @return number of promoted messages, or 0 if delayed messages are not enabled in {@link QueueOptions}
+	 */
+	public long getPromotedDelayed() {
+		return promoter != null ? promoter.getProcessed() : 0;
+	}
+
+	/**
+	 * Move due messages from the delayed collection to queue, with a bulk insert per chunk of {@link BatchOptions#getChunkSize()}.
+	 * A delayed message is removed only if it was not acked or replaced since it was read, otherwise its copy is removed from queue. Called by the promoter of delayed messages enabled in {@link QueueOptions}
+	 *
+	 * @return number of moved messages
+	 */
+	public int promoteDelayed() {
+		if (delayed == null) {
+			return 0;
+		}
 
+		final int chunkSize = BatchOptions.defaultOptions().getChunkSize();
+		int promoted = 0;
 		while (true) {
-			final BasicDBObject message = (BasicDBObject) collection.findAndModify(builtQuery, fields, sort, false, update, true, false);
-			if (message != null) {
-				final ObjectId id = message.getObjectId("_id");
-				return ((BasicDBObject) message.get("payload")).append("id", id);
+			final List<DBObject> chunk;
+			try (DBCursor cursor = delayed.find(new BasicDBObject("earliestGet", new BasicDBObject("$lte", new Date())))
+					.sort(new BasicDBObject("earliestGet", 1))
+					.limit(chunkSize)) {
+				chunk = cursor.toArray();
+			}
+			if (chunk.isEmpty()) {
+				break;
 			}
 
-			if (new Date().compareTo(end) >= 0) {
-				return null;
+			final BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+			for (final DBObject message : chunk) {
+				bulk.insert(message);
 			}
 
+			final boolean[] failed = new boolean[chunk.size()];
+			final boolean[] duplicate = new boolean[chunk.size()];
+			BulkWriteException failure = null;
 			try {
-				Thread.sleep(pollDuration);
-			} catch (final InterruptedException ex) {
-				throw new RuntimeException(ex);
-			} catch (final IllegalArgumentException ex) {
-				pollDuration = 0;
+				bulk.execute();
+			} catch (final BulkWriteException ex) {
+				for (final BulkWriteError error : ex.getWriteErrors()) {
+					//message with the same id is in queue already, when a previous promotion failed before removing it
+					if (error.getCode() == DUPLICATE_KEY) {
+						duplicate[error.getIndex()] = true;
+					} else {
+						failed[error.getIndex()] = true;
+						failure = ex;
+					}
+				}
 			}
+
+			for (int i = 0; i < chunk.size(); ++i) {
+				if (failed[i]) {
+					continue;
+				}
+
+				//the delayed message may have been acked or replaced since it was read, remove only the state that was copied
+				final DBObject copy = chunk.get(i);
+				if (delayed.remove(copy).getN() > 0) {
+					++promoted;
+				} else if (!duplicate[i]) {
+					collection.remove(copy);
+				}
+			}
+
+			if (failure != null) {
+				throw failure;
+			}
+			if (chunk.size() < chunkSize) {
+				break;
+			}
+		}
+
+		if (promoted > 0) {
+			signal(new Date());
 		}
+		return promoted;
 	}
 
 	/**
-	 * Count in queue, running true or false
+	 * Count in queue, running true or false, including delayed messages
 	 *
 	 * @param query query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
 	 * invalid {$and: [{...}, {...}]}. Should not be null
 	 * @return count
 	 */
 	public long count(final BasicDBObject query) {
-		Objects.requireNonNull(query);
-
-		final BasicDBObject completeQuery = new BasicDBObject();
-
-		for (final Entry<String, Object> field : query.entrySet()) {
-			completeQuery.append("payload." + field.getKey(), field.getValue());
-		}
-
-		return collection.count(completeQuery);
+		final BasicDBObject completeQuery = countQuery(query, null);
+		return collection.count(completeQuery) + (delayed != null ? delayed.count(completeQuery) : 0);
 	}
 
 	/**
-	 * Count in queue
+	 * Count in queue. Delayed messages are counted as not running
 	 *
 	 * @param query query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
 	 * invalid {$and: [{...}, {...}]}. Should not be null
@@ -215,15 +618,91 @@ public final class MessageQueue {
 	 * @return count
 	 */
 	public long count(final BasicDBObject query, final boolean running) {
+		final long count = collection.count(countQuery(query, running));
+		return running || delayed == null ? count : count + delayed.count(countQuery(query, null));
+	}
+
+	private static BasicDBObject countQuery(final BasicDBObject query, final Boolean running) {
 		Objects.requireNonNull(query);
 
-		final BasicDBObject completeQuery = new BasicDBObject("running", running);
+		final BasicDBObject completeQuery = running != null ? new BasicDBObject("running", running) : new BasicDBObject();
 
 		for (final Entry<String, Object> field : query.entrySet()) {
 			completeQuery.append("payload." + field.getKey(), field.getValue());
 		}
 
-		return collection.count(completeQuery);
+		return completeQuery;
+	}
+
+	/**
+	 * Estimated count of all messages in queue, taken from collection stats without scanning the collection.
+	 * May be inaccurate after unclean shutdown of the database, and on sharded clusters with migrations in progress
+	 *
+	 * @return estimated count
+	 */
+	public long estimatedCount() {
+		return estimatedCount(collection) + (delayed != null ? estimatedCount(delayed) : 0);
+	}
+
+	private static long estimatedCount(final DBCollection target) {
+		final Object count = target.getStats().get("count");
+		return count instanceof Number ? ((Number) count).longValue() : 0;
+	}
+
+	/**
+	 * Count of all messages in queue, kept by counters enabled with {@link QueueOptions#withCounters(String...)}
+	 *
+	 * @return count
+	 * @throws IllegalStateException if counters are not enabled
+	 */
+	public long countFromCounters() {
+		return counters().count();
+	}
+
+	/**
+	 * Count of messages in queue with given value of payload field, kept by counters enabled with {@link QueueOptions#withCounters(String...)}
+	 *
+	 * @param field top level payload field, one of counted fields. Should not be null
+	 * @param value field value
+	 * @return count
+	 * @throws IllegalStateException if counters are not enabled
+	 * @throws IllegalArgumentException if field is not counted
+	 */
+	public long countFromCounters(final String field, final Object value) {
+		Objects.requireNonNull(field);
+		if (!counters().getFields().contains(field)) {
+			throw new IllegalArgumentException("field " + field + " is not counted");
+		}
+
+		return counters().count(field, value);
+	}
+
+	/**
+	 * Recompute counters from queue contents, for a queue which had messages before counters were enabled.
+	 * Sends and acks running concurrently may be lost from counters
+	 *
+	 * @throws IllegalStateException if counters are not enabled
+	 */
+	public void resetCounters() {
+		final Map<String, Map<Object, Long>> byField = new LinkedHashMap<>();
+		for (final String field : counters().getFields()) {
+			@SuppressWarnings("unchecked")
+			final List<Object> queueValues = collection.distinct("payload." + field);
+			final Set<Object> values = new LinkedHashSet<>(queueValues);
+			if (delayed != null) {
+				@SuppressWarnings("unchecked")
+				final List<Object> delayedValues = delayed.distinct("payload." + field);
+				values.addAll(delayedValues);
+			}
+
+			final Map<Object, Long> byValue = new LinkedHashMap<>();
+			for (final Object value : values) {
+				byValue.put(value, count(new BasicDBObject(field, value)));
+			}
+			byField.put(field, byValue);
+		}
+
+		counters().reset(count(new BasicDBObject()), byField);
 	}
 
 	/**
@@ -238,7 +717,101 @@ public final class MessageQueue {
 			throw new IllegalArgumentException("id must be an ObjectId");
 		}
 
-		collection.remove(new BasicDBObject("_id", id));
+		final long start = System.nanoTime();
+		int removed = remove(collection, id);
+		if (removed == 0 && delayed != null) {
+			removed = remove(delayed, id);
+		}
+		metrics.recordAck(removed, System.nanoTime() - start);
+	}
+
+	/**
+	 * Acknowledge messages were processed and remove them from queue, using default batch options
+	 *
+	 * @param ids ids of messages received from get(). Should not be null or contain nulls.
+	 * @return number of removed messages
+	 */
+	public long ackAll(final Collection<ObjectId> ids) {
+		return ackAll(ids, BatchOptions.defaultOptions());
+	}
+
+	/**
+	 * Acknowledge messages were processed and remove them from queue, with a single remove per chunk of
+	 * {@link BatchOptions#getChunkSize()} ids, preceded by a single find of their payloads when counted fields are configured
+	 *
+	 * @param ids ids of messages received from get(). Should not be null or contain nulls.
+	 * @param options batch options. Should not be null
+	 * @return number of removed messages
+	 */
+	public long ackAll(final Collection<ObjectId> ids, final BatchOptions options) {
+		Objects.requireNonNull(ids);
+		Objects.requireNonNull(options);
+
+		final List<ObjectId> idList = new ArrayList<>(ids);
+		for (final ObjectId id : idList) {
+			Objects.requireNonNull(id);
+		}
+
+		final long start = System.nanoTime();
+		long removed = 0;
+		for (int from = 0; from < idList.size(); from += options.getChunkSize()) {
+			final List<ObjectId> chunk = idList.subList(from, Math.min(from + options.getChunkSize(), idList.size()));
+			int chunkRemoved = removeAll(collection, chunk);
+			if (delayed != null && chunkRemoved < chunk.size()) {
+				chunkRemoved += removeAll(delayed, chunk);
+			}
+			removed += chunkRemoved;
+		}
+		if (counters != null && !counters.hasFields()) {
+			counters.add(-removed);
+		}
+
+		metrics.recordAck((int) removed, System.nanoTime() - start);
+		return removed;
+	}
+
+	/**
+	 * Extend lease of message, so it is not considered abandoned for another resetDuration seconds.
+	 * The lease is extended only if the message is still leased with the lease token it was received with.
+	 *
+	 * @param message message received from get(). Should not be null.
+	 * @param resetDuration duration in seconds from now before this message is considered abandoned
+	 * @return whether the lease was extended
+	 */
+	public boolean touch(final BasicDBObject message, final int resetDuration) {
+		Objects.requireNonNull(message);
+
+		return touchAll(Collections.singletonList(message), resetDuration) == 1;
+	}
+
+	/**
+	 * Extend leases of messages, so they are not considered abandoned for another resetDuration seconds.
+	 * Only messages still leased with the lease token they were received with are extended, with one update per distinct lease token.
+	 *
+	 * @param messages messages received from get(). Should not be null or contain nulls.
+	 * @param resetDuration duration in seconds from now before these messages are considered abandoned
+	 * @return number of extended leases
+	 */
+	public int touchAll(final Collection<BasicDBObject> messages, final int resetDuration) {
+		return updateLeased(messages, new BasicDBObject("$set", new BasicDBObject("resetTimestamp", resetTimestamp(resetDuration))));
+	}
+
+	/**
+	 * Release messages back to queue without changing their position, so they can be given with another call to get() immediately.
+	 * Only messages still leased with the lease token they were received with are released, and their claim is not counted as a delivery.
+	 *
+	 * @param messages messages received from get(). Should not be null or contain nulls.
+	 * @return number of released messages
+	 */
+	public int releaseAll(final Collection<BasicDBObject> messages) {
+		//released messages were never handed out, so their claim is not counted as a delivery
+		final int released = updateLeased(messages, new BasicDBObject("$set", new BasicDBObject("running", false).append("resetTimestamp", new Date(Long.MAX_VALUE)))
+				.append("$inc", new BasicDBObject("deliveries", -1)));
+		if (released > 0) {
+			signal(new Date());
+		}
+
+		return released;
 	}
 
 	/**
@@ -283,28 +856,76 @@ public final class MessageQueue {
 			throw new IllegalArgumentException("id must be an ObjectId");
 		}
 
-		final BasicDBObject newMessage = new BasicDBObject("payload", payload)
+		replace(id, payload, earliestGet, priority, false);
+	}
+
+	private void replace(final Object id, final BasicDBObject payload, final Date earliestGet, final double priority, final boolean keepDeliveries) {
+		final BasicDBObject newMessage = striped(new BasicDBObject("payload", payload)
 				.append("running", false)
 				.append("resetTimestamp", new Date(Long.MAX_VALUE))
 				.append("earliestGet", earliestGet)
 				.append("priority", priority)
-				.append("created", new Date());
+				.append("created", new Date()));
+		if (isDelayed(earliestGet)) {
+			replaceDelayed(id, newMessage, keepDeliveries);
+			return;
+		}
+
+		//requeued message keeps its deliveries, while a sent one replaces the document and starts counting them anew
+		final BasicDBObject update = keepDeliveries ? new BasicDBObject("$set", newMessage) : newMessage;
 
 		//using upsert because if no documents found then the doc was removed (SHOULD ONLY HAPPEN BY SOMEONE MANUALLY) so we can just send
-		collection.update(new BasicDBObject("_id", id), newMessage, true, false);
+		if (counters == null) {
+			collection.update(new BasicDBObject("_id", id), update, true, false);
+		} else if (counters.hasFields()) {
+			final DBObject replaced = collection.findAndModify(new BasicDBObject("_id", id), counters.getProjection(), null, false, update, false, true);
+			counters.add(Collections.singletonList(payload), replaced == null
+					? Collections.<DBObject>emptyList()
+					: Collections.singletonList((DBObject) replaced.get("payload")));
+		} else if (!collection.update(new BasicDBObject("_id", id), update, true, false).isUpdateOfExisting()) {
+			counters.add(1);
+		}
+		coalescedSignal(earliestGet);
 	}
 
 	/**
-	 * Requeue message with earliestGet as Now and 0.0 priority. Same as ackSend() with the same message.
+	 * Moves message to the delayed collection. It is copied first and then removed from queue, so it is never lost,
+	 * and a copy left in queue by a crash in between is given again after its lease expires.
+	 */
+	private void replaceDelayed(final Object id, final BasicDBObject newMessage, final boolean keepDeliveries) {
+		final DBObject existing = collection.findOne(new BasicDBObject("_id", id), new BasicDBObject("payload", 1).append("deliveries", 1));
+		if (keepDeliveries && existing != null && existing.get("deliveries") != null) {
+			newMessage.append("deliveries", existing.get("deliveries"));
+		}
+
+		delayed.save(newMessage.append("_id", id));
+		if (existing != null) {
+			collection.remove(new BasicDBObject("_id", id));
+		}
+
+		if (counters != null && counters.hasFields()) {
+			counters.add(Collections.singletonList((DBObject) newMessage.get("payload")), existing == null
+					? Collections.<DBObject>emptyList()
+					: Collections.singletonList((DBObject) existing.get("payload")));
+		} else if (counters != null && existing == null) {
+			counters.add(1);
+		}
+	}
+
+	/**
+	 * Requeue message with earliestGet delayed by {@link QueueOptions#getRetryPolicy()} and 0.0 priority.
+	 * Same as ackSend() with the same message, except the number of deliveries is kept.
 	 *
 	 * @param message message to requeue received from get(). Should not be null
 	 */
 	public void requeue(final BasicDBObject message) {
-		requeue(message, new Date());
+		Objects.requireNonNull(message);
+
+		requeue(message, new Date(System.currentTimeMillis() + options.getRetryPolicy().delay(deliveries(message))));
 	}
 
 	/**
-	 * Requeue message with 0.0 priority. Same as ackSend() with the same message.
+	 * Requeue message with 0.0 priority. Same as ackSend() with the same message, except the number of deliveries is kept.
 	 *
 	 * @param message message to requeue received from get(). Should not be null
 	 * @param earliestGet earliest instant that a call to get() can return message. Should not be null
@@ -314,7 +935,8 @@ public final class MessageQueue {
 	}
 
 	/**
-	 * Requeue message. Same as ackSend() with the same message.
+	 * Requeue message. Same as ackSend() with the same message, except the number of deliveries is kept.
+	 * Message delivered {@link QueueOptions#getMaxDeliveries()} times is moved to dead letters instead.
 	 *
 	 * @param message message to requeue received from get(). Should not be null
 	 * @param earliestGet earliest instant that a call to get() can return message. Should not be null
@@ -332,9 +954,128 @@ public final class MessageQueue {
 			throw new IllegalArgumentException("id must be an ObjectId");
 		}
 
+		final int maxDeliveries = options.getMaxDeliveries();
+		if (maxDeliveries > 0 && (!message.containsField("deliveries") || deliveries(message) >= maxDeliveries)
+				&& deadLetter(new BasicDBObject("_id", id).append("deliveries", new BasicDBObject("$gte", maxDeliveries)), "requeued") > 0) {
+			return;
+		}
+
 		final BasicDBObject forRequeue = new BasicDBObject(message);
 		forRequeue.removeField("id");
-		ackSend(message, forRequeue, earliestGet, priority);
+		forRequeue.removeField("lease");
+		forRequeue.removeField("deliveries");
+		replace(id, forRequeue, earliestGet, priority, true);
+	}
+
+	/**
+	 * Dead letters of queue, moved from it after {@link QueueOptions#getMaxDeliveries()}, in order they were sent
+	 *
+	 * @param query query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
+	 * invalid {$and: [{...}, {...}]}. Should not be null
+	 * @param limit maximum number of returned dead letters, or 0 for all of them
+	 * @return payloads with id and deliveries of the messages, like the ones received from get()
+	 */
+	public List<BasicDBObject> getDeadLetters(final BasicDBObject query, final int limit) {
+		final List<BasicDBObject> payloads = new ArrayList<>();
+		try (DBCursor cursor = deadLetters.find(countQuery(query, null)).sort(new BasicDBObject("created", 1)).limit(limit)) {
+			for (final DBObject deadLetter : cursor) {
+				payloads.add(((BasicDBObject) deadLetter.get("payload"))
+						.append("id", deadLetter.get("_id"))
+						.append("deliveries", deadLetter.get("deliveries")));
+			}
+		}
+
+		return payloads;
+	}
+
+	/**
+	 * Count dead letters of queue
+	 *
+	 * @param query query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
+	 * invalid {$and: [{...}, {...}]}. Should not be null
+	 * @return count
+	 */
+	public long countDeadLetters(final BasicDBObject query) {
+		return deadLetters.count(countQuery(query, null));
+	}
+
+	/**
+	 * Move dead letters back to queue, keeping their ids, priority and creation instant, with earliestGet as Now and no deliveries.
+	 * Dead letters are moved with a bulk insert and a single remove per chunk of {@link BatchOptions#getChunkSize()}.
+	 *
+	 * @param query query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
+	 * invalid {$and: [{...}, {...}]}. Should not be null
+	 * @return number of messages put back to queue
+	 */
+	public long redriveDeadLetters(final BasicDBObject query) {
+		final BasicDBObject completeQuery = countQuery(query, null);
+		final int chunkSize = BatchOptions.defaultOptions().getChunkSize();
+		final Date now = new Date();
+
+		long redriven = 0;
+		while (true) {
+			final List<DBObject> chunk;
+			try (DBCursor cursor = deadLetters.find(completeQuery).limit(chunkSize)) {
+				chunk = cursor.toArray();
+			}
+			if (chunk.isEmpty()) {
+				break;
+			}
+
+			final BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+			final List<Object> ids = new ArrayList<>(chunk.size());
+			for (final DBObject deadLetter : chunk) {
+				bulk.insert(striped(new BasicDBObject("_id", deadLetter.get("_id"))
+						.append("payload", deadLetter.get("payload"))
+						.append("running", false)
+						.append("resetTimestamp", new Date(Long.MAX_VALUE))
+						.append("earliestGet", now)
+						.append("priority", deadLetter.get("priority"))
+						.append("created", deadLetter.get("created"))));
+				ids.add(deadLetter.get("_id"));
+			}
+
+			final boolean[] failed = new boolean[chunk.size()];
+			try {
+				bulk.execute();
+			} catch (final BulkWriteException ex) {
+				for (final BulkWriteError error : ex.getWriteErrors()) {
+					//message with the same id is in queue already, so the dead letter is just dropped
+					if (error.getCode() != DUPLICATE_KEY) {
+						throw ex;
+					}
+					failed[error.getIndex()] = true;
+				}
+			}
+
+			final List<DBObject> inserted = new ArrayList<>(chunk.size());
+			for (int i = 0; i < chunk.size(); ++i) {
+				if (!failed[i]) {
+					inserted.add((DBObject) chunk.get(i).get("payload"));
+				}
+			}
+			if (counters != null && !inserted.isEmpty()) {
+				counters.add(inserted, Collections.<DBObject>emptyList());
+			}
+			deadLetters.remove(new BasicDBObject("_id", new BasicDBObject("$in", ids)));
+			redriven += inserted.size();
+		}
+
+		if (redriven > 0) {
+			signal(now);
+		}
+		return redriven;
+	}
+
+	/**
+	 * Remove dead letters of queue
+	 *
+	 * @param query query where top level fields do not contain operators. Lower level fields can however. eg: valid {a: {$gt: 1}, "b.c": 3},
+	 * invalid {$and: [{...}, {...}]}. Should not be null
+	 * @return number of removed dead letters
+	 */
+	public long purgeDeadLetters(final BasicDBObject query) {
+		return deadLetters.remove(countQuery(query, null)).getN();
 	}
 
 	/**
@@ -370,38 +1111,508 @@ public final class MessageQueue {
 			throw new IllegalArgumentException("priority was NaN");
 		}
 
-		final BasicDBObject message = new BasicDBObject("payload", payload)
+		final long start = System.nanoTime();
+		final BasicDBObject message = striped(new BasicDBObject("payload", payload)
 				.append("running", false)
 				.append("resetTimestamp", new Date(Long.MAX_VALUE))
 				.append("earliestGet", earliestGet)
 				.append("priority", priority)
-				.append("created", new Date());
+				.append("created", new Date()));
 
-		collection.insert(message);
+		target(earliestGet).insert(message);
+		if (counters != null) {
+			counters.add(Collections.singletonList(payload), Collections.<DBObject>emptyList());
+		}
+		metrics.recordSend(1, System.nanoTime() - start);
+		coalescedSignal(earliestGet);
 	}
 
-	private void ensureIndex(final BasicDBObject index) {
-		for (int i = 0; i < 5; ++i) {
-			for (String name = UUID.randomUUID().toString(); name.length() > 0; name = name.substring(0, name.length() - 1)) {
-				//creating an index with the same name and different spec does nothing.
-				//creating an index with different name and same spec does nothing.
-				//so we use any generated name, and then find the right spec after we have called, and just go with that name.
+	/**
+	 * Send messages to queue with earliestGet as Now and 0.0 priority, using default batch options
+	 *
+	 * @param payloads payloads. Should not be null or contain nulls
+	 * @return batch result with ids of sent messages and failures
+	 */
+	public BatchResult sendBatch(final List<BasicDBObject> payloads) {
+		return sendBatch(payloads, new Date());
+	}
 
-				try {
-					collection.createIndex(index, new BasicDBObject("name", name).append("background", true));
-				} catch (final Exception e) {
-					//happens when name is too long
-				}
+	/**
+	 * Send messages to queue with 0.0 priority, using default batch options
+	 *
+	 * @param payloads payloads. Should not be null or contain nulls
+	 * @param earliestGet earliest instant that a call to Get() can return messages. Should not be null
+	 * @return batch result with ids of sent messages and failures
+	 */
+	public BatchResult sendBatch(final List<BasicDBObject> payloads, final Date earliestGet) {
+		return sendBatch(payloads, earliestGet, 0.0);
+	}
 
-				for (final DBObject existingIndex : collection.getIndexInfo()) {
+	/**
+	 * Send messages to queue, using default batch options
+	 *
+	 * @param payloads payloads. Should not be null or contain nulls
+	 * @param earliestGet earliest instant that a call to Get() can return messages. Should not be null
+	 * @param priority priority for order out of Get(). 0 is higher priority than 1. Should not be NaN
+	 * @return batch result with ids of sent messages and failures
+	 */
+	public BatchResult sendBatch(final List<BasicDBObject> payloads, final Date earliestGet, final double priority) {
+		return sendBatch(payloads, earliestGet, priority, BatchOptions.defaultOptions());
+	}
 
-					if (existingIndex.get("key").equals(index)) {
-						return;
+	/**
+	 * Send messages to queue with bulk inserts, one bulk write per chunk of {@link BatchOptions#getChunkSize()} messages.
+	 * Ordered batch stops at the first failure and reports all following messages as not attempted,
+	 * unordered batch reports failures and continues with the rest of messages.
+	 *
+	 * @param payloads payloads. Should not be null or contain nulls
+	 * @param earliestGet earliest instant that a call to Get() can return messages. Should not be null
+	 * @param priority priority for order out of Get(). 0 is higher priority than 1. Should not be NaN
+	 * @param options batch options. Should not be null
+	 * @return batch result with ids of sent messages and failures
+	 */
+	public BatchResult sendBatch(final List<BasicDBObject> payloads, final Date earliestGet, final double priority, final BatchOptions options) {
+		Objects.requireNonNull(payloads);
+		Objects.requireNonNull(earliestGet);
+		Objects.requireNonNull(options);
+		if (Double.isNaN(priority)) {
+			throw new IllegalArgumentException("priority was NaN");
+		}
+
+		final long start = System.nanoTime();
+		final Date created = new Date();
+		final List<BasicDBObject> messages = new ArrayList<>(payloads.size());
+		final List<ObjectId> ids = new ArrayList<>(payloads.size());
+		for (final BasicDBObject payload : payloads) {
+			Objects.requireNonNull(payload);
+
+			final ObjectId id = new ObjectId();
+			messages.add(striped(new BasicDBObject("_id", id)
+					.append("payload", payload)
+					.append("running", false)
+					.append("resetTimestamp", new Date(Long.MAX_VALUE))
+					.append("earliestGet", earliestGet)
+					.append("priority", priority)
+					.append("created", created)));
+			ids.add(id);
+		}
+
+		final BatchResult result = new BatchResult(ids);
+		final DBCollection target = target(earliestGet);
+		for (int from = 0; from < messages.size(); from += options.getChunkSize()) {
+			final int to = Math.min(from + options.getChunkSize(), messages.size());
+			final BulkWriteOperation bulk = options.isOrdered()
+					? target.initializeOrderedBulkOperation()
+					: target.initializeUnorderedBulkOperation();
+			for (final BasicDBObject message : messages.subList(from, to)) {
+				bulk.insert(message);
+			}
+
+			final int inserted = result.getInsertedCount();
+			boolean stopped = false;
+			try {
+				result.addInserted(bulk.execute().getInsertedCount());
+			} catch (final BulkWriteException ex) {
+				result.addInserted(ex.getWriteResult().getInsertedCount());
+				for (final BulkWriteError error : ex.getWriteErrors()) {
+					result.addFailure(new BatchResult.Failure(from + error.getIndex(), error.getCode(), error.getMessage()));
+				}
+
+				if (options.isOrdered() && !ex.getWriteErrors().isEmpty()) {
+					final int failedIndex = from + ex.getWriteErrors().get(0).getIndex();
+					for (int skipped = failedIndex + 1; skipped < messages.size(); ++skipped) {
+						result.addFailure(new BatchResult.Failure(skipped, BatchResult.NOT_ATTEMPTED,
+								"not attempted, ordered batch stopped at message " + failedIndex));
 					}
+					stopped = true;
 				}
 			}
+
+			//every chunk is signalled as soon as it is inserted, so readers do not wait for the whole batch
+			if (result.getInsertedCount() > inserted) {
+				signal(earliestGet);
+			}
+			if (stopped) {
+				break;
+			}
+		}
+
+		if (counters != null) {
+			countSent(payloads, result);
+		}
+		metrics.recordSend(result.getInsertedCount(), System.nanoTime() - start);
+
+		return result;
+	}
+
+	private void countSent(final List<BasicDBObject> payloads, final BatchResult result) {
+		if (!counters.hasFields()) {
+			counters.add(result.getInsertedCount());
+			return;
+		}
+
+		final boolean[] failed = new boolean[payloads.size()];
+		for (final BatchResult.Failure failure : result.getFailures()) {
+			failed[failure.getIndex()] = true;
+		}
+		final List<BasicDBObject> sent = new ArrayList<>(payloads.size());
+		for (int i = 0; i < payloads.size(); ++i) {
+			if (!failed[i]) {
+				sent.add(payloads.get(i));
+			}
+		}
+
+		counters.add(sent, Collections.<DBObject>emptyList());
+	}
+
+	/**
+	 * Removes messages with given ids with a single remove. When counted fields are configured,
+	 * their payloads are found first with a single find, to update the counters.
+	 */
+	private int removeAll(final DBCollection target, final List<ObjectId> ids) {
+		if (counters == null || !counters.hasFields()) {
+			return target.remove(new BasicDBObject("_id", new BasicDBObject("$in", ids))).getN();
+		}
+
+		final List<Object> found = new ArrayList<>(ids.size());
+		final List<DBObject> payloads = new ArrayList<>(ids.size());
+		try (DBCursor cursor = target.find(new BasicDBObject("_id", new BasicDBObject("$in", ids)), counters.getProjection())) {
+			for (final DBObject message : cursor) {
+				found.add(message.get("_id"));
+				payloads.add((DBObject) message.get("payload"));
+			}
+		}
+		if (found.isEmpty()) {
+			return 0;
+		}
+
+		final int removed = target.remove(new BasicDBObject("_id", new BasicDBObject("$in", found))).getN();
+		counters.add(Collections.<DBObject>emptyList(), payloads);
+		//messages acknowledged concurrently in between are counted by whoever removed them, so only the total is corrected
+		counters.add(payloads.size() - removed);
+		return removed;
+	}
+
+	private int remove(final DBCollection target, final Object id) {
+		if (counters == null) {
+			return target.remove(new BasicDBObject("_id", id)).getN();
+		}
+		if (!counters.hasFields()) {
+			final int removed = target.remove(new BasicDBObject("_id", id)).getN();
+			counters.add(-removed);
+			return removed;
+		}
+
+		final DBObject removed = target.findAndModify(new BasicDBObject("_id", id), counters.getProjection(), null, true, null, false, false);
+		if (removed == null) {
+			return 0;
+		}
+
+		counters.add(Collections.<DBObject>emptyList(), Collections.singletonList((DBObject) removed.get("payload")));
+		return 1;
+	}
+
+	private QueueCounters counters() {
+		if (counters == null) {
+			throw new IllegalStateException("counters are not enabled");
+		}
+
+		return counters;
+	}
+
+	private List<BasicDBObject> claim(final BasicDBObject builtQuery, final int max, final Date resetTimestamp) {
+		final List<Object> ids = new ArrayList<>(max);
+		try (DBCursor cursor = collection.find(builtQuery, ID_FIELD).sort(SORT).limit(max)) {
+			for (final DBObject candidate : cursor) {
+				ids.add(candidate.get("_id"));
+			}
+		}
+
+		if (ids.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		final ObjectId lease = new ObjectId();
+		final BasicDBObject idsQuery = new BasicDBObject("_id", new BasicDBObject("$in", ids));
+
+		//repeating the whole query, since candidates could have been taken and requeued by someone else in between
+		collection.updateMulti(new BasicDBObject(builtQuery).append("_id", new BasicDBObject("$in", ids)),
+				new BasicDBObject("$set", new BasicDBObject("running", true)
+						.append("resetTimestamp", resetTimestamp)
+						.append("lease", lease))
+						.append("$inc", new BasicDBObject("deliveries", 1)));
+
+		final List<BasicDBObject> messages = new ArrayList<>(ids.size());
+		try (DBCursor cursor = collection.find(idsQuery.append("lease", lease), FIELDS).sort(SORT)) {
+			for (final DBObject message : cursor) {
+				messages.add(claimed((BasicDBObject) message, lease));
+			}
+		}
+
+		return messages;
+	}
+
+	private int updateLeased(final Collection<BasicDBObject> messages, final BasicDBObject update) {
+		Objects.requireNonNull(messages);
+
+		final Map<Object, List<Object>> idsByLease = new LinkedHashMap<>();
+		for (final BasicDBObject message : messages) {
+			Objects.requireNonNull(message);
+			final Object id = message.get("id");
+			final Object lease = message.get("lease");
+			if (id == null || !id.getClass().equals(ObjectId.class) || lease == null || !lease.getClass().equals(ObjectId.class)) {
+				throw new IllegalArgumentException("id and lease must be ObjectIds");
+			}
+
+			idsByLease.computeIfAbsent(lease, key -> new ArrayList<>()).add(id);
+		}
+
+		int updated = 0;
+		for (final Entry<Object, List<Object>> leased : idsByLease.entrySet()) {
+			updated += collection.updateMulti(new BasicDBObject("_id", new BasicDBObject("$in", leased.getValue()))
+							.append("running", true)
+							.append("lease", leased.getKey()),
+					update).getN();
+		}
+
+		return updated;
+	}
+
+	private void signal(final Date earliestGet) {
+		//delayed messages are picked up by the signal timeout poll
+		if (signals != null && earliestGet.getTime() <= System.currentTimeMillis()) {
+			signals.signal();
+		}
+	}
+
+	private void coalescedSignal(final Date earliestGet) {
+		if (signals != null && earliestGet.getTime() <= System.currentTimeMillis()) {
+			signals.coalescedSignal();
+		}
+	}
+
+	long signalVersion() {
+		return signals != null ? signals.version() : 0;
+	}
+
+	private long await(final long signalVersion, final long pollDuration, final long end) {
+		final long start = System.nanoTime();
+		if (signals == null) {
+			sleep(pollDuration);
+		} else {
+			signals.await(signalVersion, Math.min(options.getSignalTimeout(), end - System.currentTimeMillis()));
+		}
+
+		return System.nanoTime() - start;
+	}
+
+	private static Date resetTimestamp(final int resetDuration) {
+		return new Date(System.currentTimeMillis() + resetDuration * 1000L);
+	}
+
+	/**
+	 * Assigns a random stripe of {@link QueueOptions#getClaimSpread()} to a message, when the spread is enabled
+	 */
+	private BasicDBObject striped(final BasicDBObject message) {
+		if (options.getClaimSpread() > 1) {
+			message.append(STRIPE_FIELD, ThreadLocalRandom.current().nextInt(options.getClaimSpread()));
+		}
+
+		return message;
+	}
+
+	private BasicDBObject findAndClaim(final PreparedGet prepared, final BasicDBObject update) {
+		final Date now = new Date();
+		BasicDBObject message = null;
+		//after a stripe missed, a short or drained queue is claimed from its head only, until the head has a message again
+		final boolean spread = options.getClaimSpread() > 1 && !prepared.isStripeMissed();
+		if (spread) {
+			//head of a random stripe, so concurrent callers do not all race for the head of the queue
+			final BasicDBObject stripeQuery = prepared.query(now, ThreadLocalRandom.current().nextInt(options.getClaimSpread()));
+			message = (BasicDBObject) collection.findAndModify(stripeQuery, FIELDS, SORT, false, update, true, false);
+		}
+		if (message == null) {
+			message = (BasicDBObject) collection.findAndModify(prepared.query(now), FIELDS, SORT, false, update, true, false);
+			prepared.setStripeMissed(spread || message == null);
+		}
+
+		return message;
+	}
+
+	private BasicDBObject claimed(final BasicDBObject message, final ObjectId lease) {
+		metrics.recordClaimLag(System.currentTimeMillis() - message.getDate("created").getTime());
+
+		final ObjectId id = message.getObjectId("_id");
+		return ((BasicDBObject) message.get("payload")).append("id", id).append("lease", lease).append("deliveries", message.getInt("deliveries", 0));
+	}
+
+	private boolean isDelayed(final Date earliestGet) {
+		return delayed != null && earliestGet.getTime() - System.currentTimeMillis() > options.getDelayThreshold();
+	}
+
+	private DBCollection target(final Date earliestGet) {
+		return isDelayed(earliestGet) ? delayed : collection;
+	}
+
+	private static int deliveries(final BasicDBObject message) {
+		final Object deliveries = message.get("deliveries");
+		return deliveries instanceof Number ? ((Number) deliveries).intValue() : 1;
+	}
+
+	/**
+	 * Moves messages matching given query to dead letters. Every message is copied first, and then removed from queue
+	 * only if it is still leased with the same token, so a message taken by someone else meanwhile stays in queue.
+	 *
+	 * @return number of moved messages
+	 */
+	private int deadLetter(final BasicDBObject query, final String reason) {
+		final List<DBObject> candidates;
+		try (DBCursor cursor = collection.find(query)) {
+			candidates = cursor.toArray();
+		}
+
+		int moved = 0;
+		for (final DBObject candidate : candidates) {
+			final Object id = candidate.get("_id");
+			deadLetters.save(new BasicDBObject(candidate.toMap()).append("deadLettered", new Date()).append("reason", reason));
+
+			final int removed = collection.remove(new BasicDBObject("_id", id)
+					.append("running", candidate.get("running"))
+					.append("lease", candidate.get("lease"))).getN();
+			if (removed == 0) {
+				//message was taken meanwhile, unless it is already moved by a concurrent reset
+				if (collection.count(new BasicDBObject("_id", id)) > 0) {
+					deadLetters.remove(new BasicDBObject("_id", id));
+				}
+				continue;
+			}
+
+			if (counters != null) {
+				counters.add(Collections.<DBObject>emptyList(), Collections.singletonList((DBObject) candidate.get("payload")));
+			}
+			LOG.warn("Moved message {} of {} to dead letters after {} deliveries, {}", id, collection.getFullName(), candidate.get("deliveries"), reason);
+			++moved;
+		}
+
+		return moved;
+	}
+
+	private static void sleep(final long pollDuration) {
+		try {
+			Thread.sleep(Math.max(pollDuration, 0));
+		} catch (final InterruptedException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Creates indexes missing from a single listing of existing ones with one createIndexes command,
+	 * and remembers ensured ones by full collection name, so repeated calls of all queues in this JVM cost no round trips.
+	 * Remembered indexes are not checked again, so they should not be dropped while the JVM runs.
+	 *
+	 * @return whether any of the indexes was not remembered before
+	 */
+	private static boolean ensureIndexes(final DBCollection target, final BasicDBObject... indexes) {
+		final Set<BasicDBObject> ensured = ENSURED_INDEXES.computeIfAbsent(target.getFullName(), name -> ConcurrentHashMap.newKeySet());
+		final List<BasicDBObject> pending = new ArrayList<>();
+		for (final BasicDBObject index : indexes) {
+			if (!ensured.contains(index)) {
+				pending.add(index);
+			}
+		}
+		if (pending.isEmpty()) {
+			return false;
+		}
+
+		final List<DBObject> existing = target.getIndexInfo();
+		final List<BasicDBObject> missing = new ArrayList<>();
+		for (final BasicDBObject index : pending) {
+			if (existing.stream().noneMatch(info -> sameKey((DBObject) info.get("key"), index))) {
+				missing.add(new BasicDBObject("key", index).append("name", indexName(index)).append("background", true));
+			}
+		}
+
+		if (!missing.isEmpty()) {
+			final CommandResult result = target.getDB().command(new BasicDBObject("createIndexes", target.getName()).append("indexes", missing));
+			result.throwOnError();
+		}
+
+		ensured.addAll(pending);
+		return true;
+	}
+
+	private static boolean sameKey(final DBObject key, final BasicDBObject index) {
+		if (key == null || key.keySet().size() != index.size()) {
+			return false;
+		}
+
+		final Iterator<String> keyFields = key.keySet().iterator();
+		for (final Entry<String, Object> field : index.entrySet()) {
+			final String keyField = keyFields.next();
+			final Object keyValue = key.get(keyField);
+			if (!keyField.equals(field.getKey())
+					|| !(keyValue instanceof Number)
+					|| ((Number) keyValue).doubleValue() != ((Number) field.getValue()).doubleValue()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return default index name as the server would generate it, or its truncated start and a digest of it if that is too long
+	 */
+	private static String indexName(final BasicDBObject index) {
+		final StringBuilder name = new StringBuilder();
+		for (final Entry<String, Object> field : index.entrySet()) {
+			if (name.length() > 0) {
+				name.append('_');
+			}
+			name.append(field.getKey()).append('_').append(field.getValue());
+		}
+		if (name.length() <= MAX_INDEX_NAME_LENGTH) {
+			return name.toString();
+		}
+
+		final byte[] digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1").digest(name.toString().getBytes(StandardCharsets.UTF_8));
+		} catch (final NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+		final StringBuilder hex = new StringBuilder(INDEX_NAME_DIGEST_LENGTH);
+		for (int i = 0; hex.length() < INDEX_NAME_DIGEST_LENGTH; ++i) {
+			hex.append(String.format("%02x", digest[i]));
+		}
+
+		return name.substring(0, MAX_INDEX_NAME_LENGTH - INDEX_NAME_DIGEST_LENGTH - 1) + "_" + hex;
+	}
+
+	/**
+	 * @return whether explain output has a plan stage with given name, on servers with query planner output,
+	 * or a matching cursor or in memory sort flag on older servers
+	 */
+	private static boolean hasStage(final Object explain, final String stage) {
+		if (explain instanceof List) {
+			return ((List<?>) explain).stream().anyMatch(child -> hasStage(child, stage));
+		}
+		if (!(explain instanceof DBObject)) {
+			return false;
+		}
+
+		final DBObject object = (DBObject) explain;
+		if (object.containsField("queryPlanner")) {
+			return hasStage(((DBObject) object.get("queryPlanner")).get("winningPlan"), stage);
+		}
+		if (object.containsField("cursor") && object.get("cursor") instanceof String) {
+			return "COLLSCAN".equals(stage)
+					? ((String) object.get("cursor")).startsWith("BasicCursor")
+					: Boolean.TRUE.equals(object.get("scanAndOrder"));
+		}
+		if (stage.equals(object.get("stage"))) {
+			return true;
 		}
 
-		throw new RuntimeException("couldnt create index after 5 attempts");
+		return hasStage(object.get("inputStage"), stage) || hasStage(object.get("inputStages"), stage);
 	}
-}
\ No newline at end of file
+}
@@ -1,26 +1,88 @@
 package by.segg3r.mongoqueue;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DefaultDBDecoder;
+import com.mongodb.DefaultDBEncoder;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bson.types.Binary;
 import org.bson.types.ObjectId;
+import org.reactivestreams.Publisher;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.convert.MongoConverter;
 import org.springframework.data.mongodb.core.convert.QueryMapper;
 import org.springframework.data.mongodb.core.query.Query;
 
 /**
- * Wrapper upon {@link MessageQueue}. Provides typed access to the queue collection.
+ * Wrapper upon {@link MessageQueue}. Provides typed access to the queue collection,
+ * or to several collections, if the queue is partitioned with {@link QueueOptions#getPartitions()}.
  * Created by Pavel_Dzunovich on 6/16/2017.
  */
-public class MessageQueueTemplate {
+public class MessageQueueTemplate implements AutoCloseable {
 
-	private MessageQueue queue;
+	private static final String COMPRESSED_FIELD = "_z";
+	private static final int[] SINGLE_LANE = {0};
+	private static final int MAX_CACHED_COUNTS = 1000;
+
+	private MessageQueue[] partitions;
+	private Partitioner partitioner;
+	private AtomicInteger homePartitions = new AtomicInteger();
+	private ThreadLocal<Integer> homePartition;
 	private MongoConverter converter;
 	private QueryMapper queryMapper;
+	private MessageCodecs codecs;
+	private TypeAliases typeAliases;
+	private CompressionOptions compression;
+	private final PriorityLanes lanes;
+	private final RetryPolicy retryPolicy;
+	//signals of all partitions, or null, if they are not enabled
+	private final QueueSignals[] signals;
+	private final long signalTimeout;
+	private final Map<String, CachedCount> cachedCounts = new ConcurrentHashMap<>();
 
 	public MessageQueueTemplate(MongoTemplate mongoTemplate, String name) {
-		this.queue = new MessageQueue(mongoTemplate.getDb().getCollection(name));
+		this(mongoTemplate, name, QueueOptions.defaultOptions());
+	}
+
+	/**
+	 * @throws IllegalArgumentException if compression is enabled and a counted field is not listed as uncompressed.
+	 */
+	public MessageQueueTemplate(MongoTemplate mongoTemplate, String name, QueueOptions options) {
+		this.compression = options.getCompression();
+		for (String field : options.getCounterFields()) {
+			if (!isUncompressed(field))
+				throw new IllegalArgumentException("Counted field " + field + " should be listed in uncompressed fields of compression options.");
+		}
+
+		this.partitions = new MessageQueue[options.getPartitions()];
+		for (int i = 0; i < partitions.length; i++) {
+			String collectionName = i == 0 ? name : name + "." + i;
+			this.partitions[i] = new MessageQueue(mongoTemplate.getDb().getCollection(collectionName), options);
+		}
+		this.partitioner = options.getPartitioner();
+		this.homePartition = ThreadLocal.withInitial(() -> Math.floorMod(homePartitions.getAndIncrement(), partitions.length));
 		this.converter = mongoTemplate.getConverter();
 		this.queryMapper = new QueryMapper(this.converter);
+		this.codecs = options.getCodecs();
+		this.typeAliases = options.getTypeAliases();
+		this.lanes = options.getLanes();
+		this.retryPolicy = options.getRetryPolicy();
+		this.signals = options.isSignals() ? new QueueSignals[partitions.length] : null;
+		for (int i = 0; signals != null && i < partitions.length; i++) {
+			signals[i] = partitions[i].signals();
+		}
+		this.signalTimeout = options.getSignalTimeout();
 	}
 
 	/**
@@ -30,7 +92,92 @@ public class MessageQueueTemplate {
 	 */
 	public void put(Message message) {
 		BasicDBObject basicDBObject = convertToMongoType(message);
-		queue.send(basicDBObject);
+		partitions[partitionFor(message)].send(basicDBObject);
+	}
+
+	/**
+	 * Puts message to queue to be received not earlier than earliestGet, with 0.0 priority.
+	 * @see MessageQueue#send(BasicDBObject, Date)
+	 * @param message message. Should not be null.
+	 * @param earliestGet earliest instant the message can be read. Should not be null.
+	 */
+	public void put(Message message, Date earliestGet) {
+		put(message, earliestGet, 0.0);
+	}
+
+	/**
+	 * Puts message to queue to be received not earlier than earliestGet, with given priority.
+	 * @see MessageQueue#send(BasicDBObject, Date, double)
+	 * @param message message. Should not be null.
+	 * @param earliestGet earliest instant the message can be read. Should not be null.
+	 * @param priority priority of the message. 0 is higher priority than 1. Should not be NaN.
+	 */
+	public void put(Message message, Date earliestGet, double priority) {
+		BasicDBObject basicDBObject = convertToMongoType(message);
+		partitions[partitionFor(message)].send(basicDBObject, earliestGet, priority);
+	}
+
+	/**
+	 * Puts messages to the end of queue to be received as soon as possible and 0.0 priority,
+	 * using bulk inserts with default batch options.
+	 * @see MessageQueue#sendBatch(List, Date, double, BatchOptions)
+	 * @param messages messages. Should not be null or contain nulls.
+	 * @return batch result with ids of put messages and per-message failures.
+	 */
+	public BatchResult putAll(Collection<? extends Message> messages) {
+		return putAll(messages, BatchOptions.defaultOptions());
+	}
+
+	/**
+	 * Puts messages to the end of queue to be received as soon as possible and 0.0 priority, using bulk inserts.
+	 * When the queue is partitioned, messages are sent in a separate batch for each partition,
+	 * and order of an ordered batch is kept only within a partition.
+	 * @see MessageQueue#sendBatch(List, Date, double, BatchOptions)
+	 * @param messages messages. Should not be null or contain nulls.
+	 * @param options batch options. {@link BatchOptions}
+	 * @return batch result with ids of put messages and per-message failures.
+	 */
+	public BatchResult putAll(Collection<? extends Message> messages, BatchOptions options) {
+		if (partitions.length == 1) {
+			List<BasicDBObject> basicDBObjects = new ArrayList<>(messages.size());
+			for (Message message : messages) {
+				basicDBObjects.add(convertToMongoType(message));
+			}
+
+			return partitions[0].sendBatch(basicDBObjects, new Date(), 0.0, options);
+		}
+
+		List<List<BasicDBObject>> basicDBObjects = new ArrayList<>(partitions.length);
+		List<List<Integer>> indexes = new ArrayList<>(partitions.length);
+		for (int i = 0; i < partitions.length; i++) {
+			basicDBObjects.add(new ArrayList<>());
+			indexes.add(new ArrayList<>());
+		}
+		int index = 0;
+		for (Message message : messages) {
+			int partition = partitionFor(message);
+			basicDBObjects.get(partition).add(convertToMongoType(message));
+			indexes.get(partition).add(index++);
+		}
+
+		List<ObjectId> ids = new ArrayList<>(Collections.nCopies(index, null));
+		BatchResult result = new BatchResult(ids);
+		Date earliestGet = new Date();
+		for (int i = 0; i < partitions.length; i++) {
+			if (basicDBObjects.get(i).isEmpty()) continue;
+
+			BatchResult partitionResult = partitions[i].sendBatch(basicDBObjects.get(i), earliestGet, 0.0, options);
+			List<Integer> partitionIndexes = indexes.get(i);
+			for (int j = 0; j < partitionIndexes.size(); j++) {
+				ids.set(partitionIndexes.get(j), partitionResult.getIds().get(j));
+			}
+			for (BatchResult.Failure failure : partitionResult.getFailures()) {
+				result.addFailure(new BatchResult.Failure(partitionIndexes.get(failure.getIndex()), failure.getCode(), failure.getMessage()));
+			}
+			result.addInserted(partitionResult.getInsertedCount());
+		}
+
+		return result;
 	}
 
 	/**
@@ -73,7 +220,7 @@ public class MessageQueueTemplate {
 
 	/**
 	 * Reads top message from the queue, using empty filter, or <b>null</b>, if queue is empty.
-	 * @see MessageQueue#get(BasicDBObject, int)
+	 * @see MessageQueue#get(BasicDBObject, int, int, PollStrategy)
 	 * @param <T> message type.
 	 * @param timings read timings for the operation. {@link ReadTimings}
 	 * @return message from the top of the queue, or <b>null</b>, if queue is empty.
@@ -84,7 +231,7 @@ public class MessageQueueTemplate {
 
 	/**
 	 * Reads top message from the queue, using query as a filter, or <b>null</b>, if no matching message found.
-	 * @see MessageQueue#get(BasicDBObject, int)
+	 * @see MessageQueue#get(BasicDBObject, int, int, PollStrategy)
 	 * @param <T> message type.
 	 * @param timings read timings for the operation. {@link ReadTimings}
 	 * @param query query filter.
@@ -97,22 +244,341 @@ public class MessageQueueTemplate {
 
 	/**
 	 * Reads top message from the queue, using query as a filter, or <b>null</b>, if no matching message found.
-	 * @see MessageQueue#get(BasicDBObject, int)
+	 * @see MessageQueue#get(BasicDBObject, int, int, PollStrategy)
 	 * @param <T> message type.
 	 * @param timings read timings for the operation. {@link ReadTimings}
 	 * @param query query filter.
 	 * @return message from the top of the queue, or <b>null</b>, if no matching message found.
 	 */
 	public <T extends Message> T read(Class<T> clazz, ReadTimings timings, BasicDBObject query) {
-		BasicDBObject basicDBObject = queue.get(query, timings.getAcknowledgePeriod(), timings.getWaitDuration());
-		if (basicDBObject == null) return null;
+		return prepareRead(clazz, timings, query).read();
+	}
 
-		T result = convertFromMongoType(clazz, basicDBObject);
-		result.setId(basicDBObject.getObjectId("id").toHexString());
+	/**
+	 * Prepares read of top messages from the queue, using empty filter, to be repeated without rebuilding the query.
+	 * @see PreparedRead
+	 * @param <T> message type.
+	 * @param timings read timings of every read. {@link ReadTimings}
+	 * @return prepared read, to be used by a single thread.
+	 */
+	public <T extends Message> PreparedRead<T> prepareRead(Class<T> clazz, ReadTimings timings) {
+		return prepareRead(clazz, timings, new BasicDBObject());
+	}
+
+	/**
+	 * Prepares read of top messages from the queue, using query as a filter, to be repeated without mapping the query again.
+	 * @see PreparedRead
+	 * @param <T> message type.
+	 * @param timings read timings of every read. {@link ReadTimings}
+	 * @param query query filter.
+	 * @return prepared read, to be used by a single thread.
+	 */
+	public <T extends Message> PreparedRead<T> prepareRead(Class<T> clazz, ReadTimings timings, Query query) {
+		return prepareRead(clazz, timings, convertQuery(query));
+	}
+
+	/**
+	 * Prepares read of top messages from the queue, using query as a filter, to be repeated without rebuilding the query.
+	 * @see PreparedRead
+	 * @param <T> message type.
+	 * @param timings read timings of every read. {@link ReadTimings}
+	 * @param query query filter.
+	 * @return prepared read, to be used by a single thread.
+	 */
+	public <T extends Message> PreparedRead<T> prepareRead(Class<T> clazz, ReadTimings timings, BasicDBObject query) {
+		return new PreparedRead<>(this, clazz, timings, prepareGets(laneQueries(checkQuery(query))));
+	}
+
+	/**
+	 * Reads up to <b>max</b> top messages from the queue, using empty filter, leasing them with a single lease token.
+	 * @see MessageQueue#getBatch(BasicDBObject, int, int, int, PollStrategy)
+	 * @param <T> message type.
+	 * @param max maximum number of messages to read.
+	 * @param timings read timings for the operation. {@link ReadTimings}
+	 * @return messages from the top of the queue, or empty list, if queue is empty.
+	 */
+	public <T extends Message> List<T> readBatch(Class<T> clazz, int max, ReadTimings timings) {
+		return readBatch(clazz, max, timings, new BasicDBObject());
+	}
+
+	/**
+	 * Reads up to <b>max</b> top messages from the queue, using query as a filter, leasing them with a single lease token.
+	 * @see MessageQueue#getBatch(BasicDBObject, int, int, int, PollStrategy)
+	 * @param <T> message type.
+	 * @param max maximum number of messages to read.
+	 * @param timings read timings for the operation. {@link ReadTimings}
+	 * @param query query filter.
+	 * @return messages from the top of the queue, or empty list, if no matching message found.
+	 */
+	public <T extends Message> List<T> readBatch(Class<T> clazz, int max, ReadTimings timings, Query query) {
+		return readBatch(clazz, max, timings, convertQuery(query));
+	}
+
+	/**
+	 * Reads up to <b>max</b> top messages from the queue, using query as a filter, leasing them with a single lease token.
+	 * @see MessageQueue#getBatch(BasicDBObject, int, int, int, PollStrategy)
+	 * @param <T> message type.
+	 * @param max maximum number of messages to read.
+	 * @param timings read timings for the operation. {@link ReadTimings}
+	 * @param query query filter.
+	 * @return messages from the top of the queue, or empty list, if no matching message found.
+	 */
+	public <T extends Message> List<T> readBatch(Class<T> clazz, int max, ReadTimings timings, BasicDBObject query) {
+		List<BasicDBObject> laneQueries = laneQueries(checkQuery(query));
+		if (partitions.length == 1 && laneQueries.size() == 1) {
+			List<BasicDBObject> basicDBObjects = partitions[0].getBatch(query, max, timings.getAcknowledgePeriod(),
+					timings.getWaitDuration(), timings.getPollStrategy());
+
+			List<T> result = new ArrayList<>(basicDBObjects.size());
+			for (BasicDBObject basicDBObject : basicDBObjects) {
+				result.add(convertMessage(clazz, basicDBObject, 0));
+			}
+
+			return result;
+		}
+
+		PreparedGet[][] gets = prepareGets(laneQueries);
+		return pollPartitions(gets.length, max, timings, (lane, partition, remaining) -> {
+			List<BasicDBObject> basicDBObjects = partitions[partition].claimBatch(gets[lane][partition], remaining, timings.getAcknowledgePeriod());
+
+			List<T> result = new ArrayList<>(basicDBObjects.size());
+			for (BasicDBObject basicDBObject : basicDBObjects) {
+				result.add(convertMessage(clazz, basicDBObject, partition));
+			}
+
+			return result;
+		});
+	}
+
+	/**
+	 * Creates asynchronous facade upon this template, running operations and scheduling poll attempts with given executor.
+	 * @see AsyncMessageQueueTemplate
+	 * @param executor executor of operations and scheduler of poll attempts.
+	 * @return asynchronous facade.
+	 */
+	public AsyncMessageQueueTemplate async(ScheduledExecutorService executor) {
+		return new AsyncMessageQueueTemplate(this, executor, executor);
+	}
+
+	/**
+	 * Creates a publisher of messages of given type, matching query. Each subscription claims exactly as many messages as its
+	 * subscriber requested, in batches of up to {@link StreamOptions#getBatchSize()}, and waits for new messages while there is demand.
+	 * Messages should be acknowledged by the subscriber once processed, or are acknowledged when its <b>onNext</b> returns, if {@link StreamOptions#isAutoAcknowledge()} is on.
+	 * @param <T> message type.
+	 * @param query query filter.
+	 * @param options stream options. {@link StreamOptions}
+	 * @return publisher of messages, which never completes.
+	 */
+	public <T extends Message> Publisher<T> stream(Class<T> clazz, Query query, StreamOptions options) {
+		return new MessagePublisher<>(this, clazz, convertQuery(query), options);
+	}
+
+	/**
+	 * Starts consuming messages of given type with <b>concurrency</b> workers, configured by options.
+	 * Each message is acknowledged when the handler returns, or requeued with a delay of {@link ConsumerOptions#getRetryPolicy()}, defaulting to {@link QueueOptions#getRetryPolicy()}, if it throws.
+	 * @see MessageListenerContainer
+	 * @param <T> message type.
+	 * @param handler message handler.
+	 * @param options consumer options. {@link ConsumerOptions}
+	 * @return running container, which should be closed to stop consuming.
+	 */
+	public <T extends Message> MessageListenerContainer<T> subscribe(Class<T> clazz, MessageHandler<T> handler, ConsumerOptions options) {
+		return new MessageListenerContainer<>(this, clazz, handler, options, convertQuery(options.getQuery()));
+	}
+
+	/**
+	 * Starts prefetching messages of given type into a local buffer, configured by options.
+	 * @see PrefetchingReader
+	 * @param <T> message type.
+	 * @param options prefetch options. {@link PrefetchOptions}
+	 * @return running reader, which should be closed to stop prefetching.
+	 */
+	public <T extends Message> PrefetchingReader<T> prefetch(Class<T> clazz, PrefetchOptions options) {
+		return new PrefetchingReader<>(this, clazz, options, convertQuery(options.getQuery()));
+	}
+
+	/**
+	 * Extends lease of given message for <b>duration</b> from now, if it is still leased by the read it was received with.
+	 * {@link Message#id} and {@link Message#lease} should be populated.
+	 * @see MessageQueue#touch(BasicDBObject, int)
+	 * @param message read message.
+	 * @param duration new lease duration, rounded down to seconds.
+	 * @return whether the lease was extended, <b>false</b> if it has expired and the message could be given to another reader.
+	 * @throws IllegalArgumentException if {@link Message#id} or {@link Message#lease} is not populated.
+	 */
+	public boolean extendLease(Message message, Duration duration) {
+		return extendLeases(Collections.singletonList(message), duration) == 1;
+	}
+
+	/**
+	 * Starts renewing leases of tracked messages for <b>lease</b> duration, every third of it.
+	 * @see LeaseHeartbeat
+	 * @param lease lease duration set by every renewal.
+	 * @return running heartbeat, which should be closed to stop renewing.
+	 */
+	public LeaseHeartbeat heartbeat(Duration lease) {
+		return heartbeat(lease, lease.dividedBy(3));
+	}
+
+	/**
+	 * Starts renewing leases of tracked messages for <b>lease</b> duration, every <b>interval</b>.
+	 * @see LeaseHeartbeat
+	 * @param lease lease duration set by every renewal.
+	 * @param interval period between renewals.
+	 * @return running heartbeat, which should be closed to stop renewing.
+	 */
+	public LeaseHeartbeat heartbeat(Duration lease, Duration interval) {
+		return new LeaseHeartbeat(this, lease, interval);
+	}
+
+	/**
+	 * Extends leases of given messages for <b>duration</b> from now, if they are still leased by the reads they were received with.
+	 * {@link Message#id} and {@link Message#lease} should be populated.
+	 * @see MessageQueue#touchAll(Collection, int)
+	 * @param messages read messages.
+	 * @param duration new lease duration, rounded down to seconds.
+	 * @return number of extended leases.
+	 * @throws IllegalArgumentException if {@link Message#id} or {@link Message#lease} is not populated.
+	 */
+	public int extendLeases(Collection<? extends Message> messages, Duration duration) {
+		int seconds = (int) Math.min(duration.getSeconds(), Integer.MAX_VALUE);
+		int extended = 0;
+		for (Map.Entry<Integer, List<Message>> entry : byPartition(messages).entrySet()) {
+			for (MessageQueue queue : queues(entry.getKey())) {
+				extended += queue.touchAll(convertLeases(entry.getValue()), seconds);
+			}
+		}
+
+		return extended;
+	}
+
+	/**
+	 * Releases given messages back to the queue without changing their position, if they are still leased
+	 * by the reads they were received with. {@link Message#id} and {@link Message#lease} should be populated.
+	 * @see MessageQueue#releaseAll(Collection)
+	 * @param messages read messages.
+	 * @return number of released messages.
+	 * @throws IllegalArgumentException if {@link Message#id} or {@link Message#lease} is not populated.
+	 */
+	public int release(Collection<? extends Message> messages) {
+		int released = 0;
+		for (Map.Entry<Integer, List<Message>> entry : byPartition(messages).entrySet()) {
+			for (MessageQueue queue : queues(entry.getKey())) {
+				released += queue.releaseAll(convertLeases(entry.getValue()));
+			}
+		}
+
+		return released;
+	}
+
+	/**
+	 * Requeues given message to be received after a delay of {@link QueueOptions#getRetryPolicy()} with 0.0 priority.
+	 * {@link Message#id} should be populated.
+	 * A message which was not read by this template is requeued in the partition holding it.
+	 * @see MessageQueue#requeue(BasicDBObject)
+	 * @param message message with a given id.
+	 * @throws IllegalArgumentException if {@link Message#id} is not populated.
+	 */
+	public void requeue(Message message) {
+		BasicDBObject basicDBObject = convertForRequeue(message);
+		queueOf(message).requeue(basicDBObject);
+	}
+
+	/**
+	 * Requeues given message with 0.0 priority, storing its current state. {@link Message#id} should be populated.
+	 * @see MessageQueue#requeue(BasicDBObject, Date)
+	 * @param message message with a given id.
+	 * @param earliestGet earliest instant the message can be read again.
+	 * @throws IllegalArgumentException if {@link Message#id} is not populated.
+	 */
+	public void requeue(Message message, Date earliestGet) {
+		BasicDBObject basicDBObject = convertForRequeue(message);
+		queueOf(message).requeue(basicDBObject, earliestGet);
+	}
+
+	private BasicDBObject convertForRequeue(Message message) {
+		if (message.getId() == null)
+			throw new IllegalArgumentException("Could not find message id to requeue.");
+
+		BasicDBObject basicDBObject = convertToMongoType(message);
+		basicDBObject.removeField("_id");
+		basicDBObject.put("id", new ObjectId(message.getId()));
+		if (message.getDeliveries() > 0) {
+			basicDBObject.put("deliveries", message.getDeliveries());
+		}
+
+		return basicDBObject;
+	}
+
+	/**
+	 * Reads dead letters, moved from the queue after {@link QueueOptions#getMaxDeliveries()}, without removing them.
+	 * {@link Message#id} and {@link Message#deliveries} of returned messages are populated.
+	 * @see MessageQueue#getDeadLetters(BasicDBObject, int)
+	 * @param <T> message type.
+	 * @param query query filter.
+	 * @param limit maximum number of dead letters read from every partition, or 0 for all of them.
+	 * @return dead letters.
+	 */
+	public <T extends Message> List<T> readDeadLetters(Class<T> clazz, Query query, int limit) {
+		BasicDBObject queryDBObject = convertQuery(query);
+		List<T> result = new ArrayList<>();
+		for (int i = 0; i < partitions.length; i++) {
+			for (BasicDBObject deadLetter : partitions[i].getDeadLetters(queryDBObject, limit)) {
+				result.add(convertMessage(clazz, deadLetter, i));
+			}
+		}
 
 		return result;
 	}
 
+	/**
+	 * Counts dead letters, using query as a filter.
+	 * @see MessageQueue#countDeadLetters(BasicDBObject)
+	 * @param query query filter.
+	 * @return number of dead letters.
+	 */
+	public long countDeadLetters(Query query) {
+		BasicDBObject queryDBObject = convertQuery(query);
+		long count = 0;
+		for (MessageQueue partition : partitions) {
+			count += partition.countDeadLetters(queryDBObject);
+		}
+
+		return count;
+	}
+
+	/**
+	 * Puts dead letters matching query back to the queue in bulk, to be received as soon as possible with no deliveries.
+	 * @see MessageQueue#redriveDeadLetters(BasicDBObject)
+	 * @param query query filter.
+	 * @return number of messages put back to the queue.
+	 */
+	public long redriveDeadLetters(Query query) {
+		BasicDBObject queryDBObject = convertQuery(query);
+		long redriven = 0;
+		for (MessageQueue partition : partitions) {
+			redriven += partition.redriveDeadLetters(queryDBObject);
+		}
+
+		return redriven;
+	}
+
+	/**
+	 * Removes dead letters matching query.
+	 * @see MessageQueue#purgeDeadLetters(BasicDBObject)
+	 * @param query query filter.
+	 * @return number of removed dead letters.
+	 */
+	public long purgeDeadLetters(Query query) {
+		BasicDBObject queryDBObject = convertQuery(query);
+		long purged = 0;
+		for (MessageQueue partition : partitions) {
+			purged += partition.purgeDeadLetters(queryDBObject);
+		}
+
+		return purged;
+	}
+
 	/**
 	 * Counts all messages in queue, using no filter.
 	 * @see MessageQueue#count(BasicDBObject)
@@ -138,11 +604,111 @@ public class MessageQueueTemplate {
 	 * @return number of messages in queue, matching provided filter.
 	 */
 	public long count(BasicDBObject query) {
-		return queue.count(query);
+		checkQuery(query);
+		long count = 0;
+		for (MessageQueue partition : partitions) {
+			count += partition.count(query);
+		}
+
+		return count;
+	}
+
+	/**
+	 * Counts all messages in queue, using no filter, reusing a count taken less than <b>maxAge</b> ago.
+	 * @see MessageQueueTemplate#count(BasicDBObject)
+	 * @param maxAge maximum age of a reused count.
+	 * @return number of messages in queue, as of at most <b>maxAge</b> ago.
+	 */
+	public long cachedCount(Duration maxAge) {
+		return cachedCount(new BasicDBObject(), maxAge);
+	}
+
+	/**
+	 * Counts all messages in queue, using query as a filter, reusing a count taken less than <b>maxAge</b> ago.
+	 * Counts of up to 1000 distinct filters are kept, each until the <b>maxAge</b> it was taken with has passed.
+	 * @see MessageQueueTemplate#count(BasicDBObject)
+	 * @param query query filter.
+	 * @param maxAge maximum age of a reused count.
+	 * @return number of messages in queue matching provided filter, as of at most <b>maxAge</b> ago.
+	 */
+	public long cachedCount(Query query, Duration maxAge) {
+		return cachedCount(convertQuery(query), maxAge);
+	}
+
+	/**
+	 * Counts all messages in queue, using query as a filter, reusing a count taken less than <b>maxAge</b> ago.
+	 * Counts of up to 1000 distinct filters are kept, each until the <b>maxAge</b> it was taken with has passed.
+	 * @see MessageQueueTemplate#count(BasicDBObject)
+	 * @param query query filter.
+	 * @param maxAge maximum age of a reused count.
+	 * @return number of messages in queue matching provided filter, as of at most <b>maxAge</b> ago.
+	 */
+	public long cachedCount(BasicDBObject query, Duration maxAge) {
+		String key = query.toString();
+		long now = System.nanoTime();
+		CachedCount cached = cachedCounts.get(key);
+		if (cached != null && now - cached.timestamp < maxAge.toNanos()) return cached.count;
+
+		long count = count(query);
+		//each count expires after the maxAge it was taken with, and counts of many distinct filters are not kept
+		if (cachedCounts.size() >= MAX_CACHED_COUNTS) {
+			cachedCounts.values().removeIf(entry -> now - entry.expiresAt >= 0);
+		}
+		if (cachedCounts.size() < MAX_CACHED_COUNTS) {
+			cachedCounts.put(key, new CachedCount(count, now, now + maxAge.toNanos()));
+		}
+		return count;
+	}
+
+	/**
+	 * Estimates number of all messages in queue from collection stats, without scanning it.
+	 * @see MessageQueue#estimatedCount()
+	 * @return estimated number of messages in queue.
+	 */
+	public long estimatedCount() {
+		long count = 0;
+		for (MessageQueue partition : partitions) {
+			count += partition.estimatedCount();
+		}
+
+		return count;
+	}
+
+	/**
+	 * Number of all messages in queue, kept by counters enabled with {@link QueueOptions#withCounters(String...)}.
+	 * @see MessageQueue#countFromCounters()
+	 * @return number of messages in queue.
+	 * @throws IllegalStateException if counters are not enabled.
+	 */
+	public long countFromCounters() {
+		long count = 0;
+		for (MessageQueue partition : partitions) {
+			count += partition.countFromCounters();
+		}
+
+		return count;
+	}
+
+	/**
+	 * Number of messages in queue with given value of a counted field, kept by counters enabled with {@link QueueOptions#withCounters(String...)}.
+	 * @see MessageQueue#countFromCounters(String, Object)
+	 * @param field counted top level message field.
+	 * @param value field value.
+	 * @return number of messages in queue with given field value.
+	 * @throws IllegalStateException if counters are not enabled.
+	 */
+	public long countFromCounters(String field, Object value) {
+		long count = 0;
+		for (MessageQueue partition : partitions) {
+			count += partition.countFromCounters(field, value);
+		}
+
+		return count;
 	}
 
 	/**
 	 * Acknowledges given message. {@link Message#id} should be populated.
+	 * A message which was not read by this template is acknowledged in every partition.
 	 * @see MessageQueue#ack(BasicDBObject)
 	 * @param message message with a given id.
 	 * @throws IllegalArgumentException if {@link Message#id} is not populated.
@@ -152,7 +718,9 @@ public class MessageQueueTemplate {
 			throw new IllegalArgumentException("Could not find message id to acknowledge.");
 
 		BasicDBObject basicDBObject = new BasicDBObject().append("id", new ObjectId(message.getId()));
-		acknowledge(basicDBObject);
+		for (MessageQueue queue : queues(partitionOf(message))) {
+			queue.ack(basicDBObject);
+		}
 	}
 
 	/**
@@ -165,7 +733,7 @@ public class MessageQueueTemplate {
 	}
 
 	/**
-	 * Acknowledges message with given objectId (should not be null).
+	 * Acknowledges message with given objectId (should not be null). When the queue is partitioned, the message is removed from any partition.
 	 * @see MessageQueue#ack(BasicDBObject)
 	 * @param objectId message's id.
 	 */
@@ -174,15 +742,107 @@ public class MessageQueueTemplate {
 		acknowledge(basicDBObject);
 	}
 
+	/**
+	 * Acknowledges given messages, using default batch options. {@link Message#id} should be populated for each of them.
+	 * @see MessageQueue#ackAll(Collection)
+	 * @param messages messages with given ids.
+	 * @return number of acknowledged messages.
+	 * @throws IllegalArgumentException if {@link Message#id} is not populated.
+	 */
+	public long acknowledgeAll(Collection<? extends Message> messages) {
+		return acknowledgeAll(messages, BatchOptions.defaultOptions());
+	}
+
+	/**
+	 * Acknowledges given messages. {@link Message#id} should be populated for each of them.
+	 * @see MessageQueue#ackAll(Collection, BatchOptions)
+	 * @param messages messages with given ids.
+	 * @param options batch options. {@link BatchOptions}
+	 * @return number of acknowledged messages.
+	 * @throws IllegalArgumentException if {@link Message#id} is not populated.
+	 */
+	public long acknowledgeAll(Collection<? extends Message> messages, BatchOptions options) {
+		long acknowledged = 0;
+		for (Map.Entry<Integer, List<Message>> entry : byPartition(messages).entrySet()) {
+			List<ObjectId> objectIds = new ArrayList<>(entry.getValue().size());
+			for (Message message : entry.getValue()) {
+				if (message.getId() == null)
+					throw new IllegalArgumentException("Could not find message id to acknowledge.");
+
+				objectIds.add(new ObjectId(message.getId()));
+			}
+
+			for (MessageQueue queue : queues(entry.getKey())) {
+				acknowledged += queue.ackAll(objectIds, options);
+			}
+		}
+
+		return acknowledged;
+	}
+
+	/**
+	 * Acknowledges messages with given objectIds (should not be null), using default batch options.
+	 * @see MessageQueue#ackAll(Collection)
+	 * @param objectIds messages' ids.
+	 * @return number of acknowledged messages.
+	 */
+	public long acknowledgeAllIds(Collection<ObjectId> objectIds) {
+		return acknowledgeAllIds(objectIds, BatchOptions.defaultOptions());
+	}
+
+	/**
+	 * Acknowledges messages with given objectIds (should not be null).
+	 * @see MessageQueue#ackAll(Collection, BatchOptions)
+	 * @param objectIds messages' ids.
+	 * @param options batch options. {@link BatchOptions}
+	 * @return number of acknowledged messages.
+	 */
+	public long acknowledgeAllIds(Collection<ObjectId> objectIds, BatchOptions options) {
+		long acknowledged = 0;
+		for (MessageQueue partition : partitions) {
+			acknowledged += partition.ackAll(objectIds, options);
+		}
+
+		return acknowledged;
+	}
+
+	/**
+	 * Number of abandoned messages reset by the reaper of the queue.
+	 * @see MessageQueue#getRecoveredLeases()
+	 * @return number of reset messages, or 0 if the reaper is not enabled in {@link QueueOptions}.
+	 */
+	public long getRecoveredLeases() {
+		long recovered = 0;
+		for (MessageQueue partition : partitions) {
+			recovered += partition.getRecoveredLeases();
+		}
+
+		return recovered;
+	}
+
+	/**
+	 * Stops background work of the queue.
+	 * @see MessageQueue#close()
+	 */
+	@Override
+	public void close() {
+		for (MessageQueue partition : partitions) {
+			partition.close();
+		}
+	}
+
 	/**
 	 * Verifies that <b>beforeSort</b> read index exists for provided field set, otherwise creates it.
 	 * @see MessageIndex
 	 * @see MessageQueue#ensureGetIndex(BasicDBObject)
 	 * @param beforeSort before sort index descriptor
+	 * @throws IllegalArgumentException if compression is enabled and an indexed field is not listed as uncompressed.
 	 */
 	public void ensureIndex(MessageIndex beforeSort) {
-		BasicDBObject beforeSortIndexObject = convertIndex(beforeSort);
-		queue.ensureGetIndex(beforeSortIndexObject);
+		BasicDBObject beforeSortIndexObject = laneIndex(convertIndex(beforeSort));
+		for (MessageQueue partition : partitions) {
+			partition.ensureGetIndex(beforeSortIndexObject);
+		}
 	}
 
 	/**
@@ -192,39 +852,405 @@ public class MessageQueueTemplate {
 	 * @see MessageQueue#ensureGetIndex(BasicDBObject, BasicDBObject)
 	 * @param beforeSort before sort index descriptor
 	 * @param afterSort after sort index descriptor
+	 * @throws IllegalArgumentException if compression is enabled and an indexed field is not listed as uncompressed.
 	 */
 	public void ensureIndex(MessageIndex beforeSort, MessageIndex afterSort) {
-		BasicDBObject beforeSortIndexObject = convertIndex(beforeSort);
+		BasicDBObject beforeSortIndexObject = laneIndex(convertIndex(beforeSort));
 		BasicDBObject afterSortIndexObject = convertIndex(afterSort);
-		queue.ensureGetIndex(beforeSortIndexObject, afterSortIndexObject);
+		for (MessageQueue partition : partitions) {
+			partition.ensureGetIndex(beforeSortIndexObject, afterSortIndexObject);
+		}
+	}
+
+	/**
+	 * Verifies with explain that reads using given query filter are served by an index in every partition,
+	 * without a collection scan or an in memory sort.
+	 * @see MessageQueue#getUsesIndex(BasicDBObject)
+	 * @param query query filter, as given to read.
+	 * @return true if reads use an index.
+	 */
+	public boolean readUsesIndex(Query query) {
+		BasicDBObject queryDBObject = convertQuery(query);
+		for (MessageQueue partition : partitions) {
+			if (!partition.getUsesIndex(queryDBObject)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Verifies with explain that counts using given query filter are served by an index in every partition.
+	 * @see MessageQueue#countUsesIndex(BasicDBObject)
+	 * @param query query filter, as given to count.
+	 * @return true if counts use an index.
+	 */
+	public boolean countUsesIndex(Query query) {
+		BasicDBObject queryDBObject = convertQuery(query);
+		for (MessageQueue partition : partitions) {
+			if (!partition.countUsesIndex(queryDBObject)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return index prefixed with the lane, so every lane is read from its own index range.
+	 */
+	private BasicDBObject laneIndex(BasicDBObject index) {
+		if (!lanes.isEnabled()) return index;
+
+		BasicDBObject laneIndex = new BasicDBObject(PriorityLanes.FIELD, 1);
+		laneIndex.putAll(index.toMap());
+		return laneIndex;
 	}
 
 	private BasicDBObject convertIndex(MessageIndex index) {
 		BasicDBObject basicDBObject = new BasicDBObject();
 		for (MessageIndex.Entry entry : index.getEntries()) {
+			String field = entry.getFieldName().split("\\.")[0];
+			if (!isUncompressed(field))
+				throw new IllegalArgumentException("Indexed field " + field + " should be listed in uncompressed fields of compression options.");
+
 			basicDBObject.put(entry.getFieldName(), entry.getOrder().value);
 		}
 
 		return basicDBObject;
 	}
 
+	private List<BasicDBObject> convertLeases(Collection<? extends Message> messages) {
+		List<BasicDBObject> basicDBObjects = new ArrayList<>(messages.size());
+		for (Message message : messages) {
+			if (message.getId() == null || message.getLease() == null)
+				throw new IllegalArgumentException("Could not find message id or lease.");
+
+			basicDBObjects.add(new BasicDBObject()
+					.append("id", new ObjectId(message.getId()))
+					.append("lease", new ObjectId(message.getLease())));
+		}
+
+		return basicDBObjects;
+	}
+
 	private void acknowledge(BasicDBObject query) {
-		queue.ack(query);
+		for (MessageQueue partition : partitions) {
+			partition.ack(query);
+		}
 	}
 
-	private BasicDBObject convertQuery(Query query) {
-		return (BasicDBObject) queryMapper.getMappedObject(query.getQueryObject(), null);
+	private int partitionFor(Message message) {
+		if (partitions.length == 1) return 0;
+
+		int partition = partitioner.partition(message, partitions.length);
+		if (partition < 0 || partition >= partitions.length)
+			throw new IllegalStateException("Partitioner returned partition " + partition + " out of " + partitions.length + ".");
+
+		return partition;
+	}
+
+	/**
+	 * @return partition the message was read from, or {@link Message#UNKNOWN_PARTITION}, if it was not read by a template of a partitioned queue.
+	 */
+	private int partitionOf(Message message) {
+		if (message.getPartition() == Message.UNKNOWN_PARTITION)
+			return partitions.length == 1 ? 0 : Message.UNKNOWN_PARTITION;
+		if (message.getPartition() < 0 || message.getPartition() >= partitions.length)
+			throw new IllegalArgumentException("Message partition " + message.getPartition() + " is out of " + partitions.length + ".");
+
+		return message.getPartition();
+	}
+
+	/**
+	 * @return partitions to look for messages of given partition in, which are all of them for {@link Message#UNKNOWN_PARTITION}.
+	 */
+	private MessageQueue[] queues(int partition) {
+		return partition == Message.UNKNOWN_PARTITION ? partitions : new MessageQueue[]{partitions[partition]};
+	}
+
+	/**
+	 * @return partition holding given message. A message of unknown partition is looked up by id in every partition,
+	 * and is put to the partition of the partitioner, if none of them holds it.
+	 */
+	private MessageQueue queueOf(Message message) {
+		int partition = partitionOf(message);
+		if (partition != Message.UNKNOWN_PARTITION) return partitions[partition];
+
+		ObjectId id = new ObjectId(message.getId());
+		for (MessageQueue queue : partitions) {
+			if (queue.contains(id)) return queue;
+		}
+
+		return partitions[partitionFor(message)];
+	}
+
+	private Map<Integer, List<Message>> byPartition(Collection<? extends Message> messages) {
+		Map<Integer, List<Message>> byPartition = new HashMap<>();
+		for (Message message : messages) {
+			byPartition.computeIfAbsent(partitionOf(message), partition -> new ArrayList<>()).add(message);
+		}
+
+		return byPartition;
+	}
+
+	/**
+	 * Polls all lanes and partitions, from the home partition of the thread, until probes claim up to max messages or the wait duration elapses.
+	 * Every attempt resets abandoned messages of every partition once, unless the reaper is enabled, and is a single poll of the poll strategy.
+	 * The read is recorded once in metrics of the home partition. When signals are enabled, a signal of any partition wakes up the wait between attempts.
+	 * @return claimed messages, or empty list.
+	 */
+	<T> List<T> pollPartitions(int laneCount, int max, ReadTimings timings, PartitionProbe<T> probe) {
+		int home = homePartition();
+		long start = System.nanoTime();
+		long end = System.currentTimeMillis() + timings.getWaitDuration();
+		long slept = 0;
+		List<T> result = new ArrayList<>();
+		for (int attempt = 1; ; ++attempt) {
+			long[] signalVersions = signalVersions();
+			for (MessageQueue partition : partitions) {
+				partition.resetStuckWithoutReaper();
+			}
+
+			for (int lane : scheduleLanes(laneCount)) {
+				for (int i = 0; i < partitions.length && result.size() < max; i++) {
+					int partition = (home + i) % partitions.length;
+					result.addAll(probe.claim(lane, partition, max - result.size()));
+				}
+			}
+
+			timings.getPollStrategy().onPoll(!result.isEmpty());
+			long remaining = end - System.currentTimeMillis();
+			if (!result.isEmpty() || remaining <= 0) {
+				partitions[home].recordGet(result.size(), attempt, result.isEmpty() ? attempt : attempt - 1, slept, System.nanoTime() - start);
+				return result;
+			}
+
+			slept += awaitPartitions(signalVersions, Math.min(remaining, timings.getPollStrategy().nextDelay(attempt)), remaining);
+		}
+	}
+
+	/**
+	 * Claim of messages from a lane of a partition, polled by {@link #pollPartitions(int, int, ReadTimings, PartitionProbe)}.
+	 */
+	@FunctionalInterface
+	interface PartitionProbe<T> {
+
+		List<T> claim(int lane, int partition, int max);
+
+	}
+
+	/**
+	 * @return versions of signals of all partitions, or null, if signals are not enabled.
+	 */
+	long[] signalVersions() {
+		if (signals == null) return null;
+
+		long[] versions = new long[signals.length];
+		for (int i = 0; i < signals.length; i++) {
+			versions[i] = signals[i].version();
+		}
+		return versions;
+	}
+
+	/**
+	 * @return whether any partition was signalled since given versions were taken.
+	 */
+	boolean isSignalled(long[] signalVersions) {
+		return QueueSignals.anyReceived(signals, signalVersions);
+	}
+
+	/**
+	 * Registers listener of signals of all partitions, see {@link QueueSignals#addListener(QueueSignals[], Runnable)}.
+	 */
+	void addSignalListener(Runnable listener) {
+		QueueSignals.addListener(signals, listener);
+	}
+
+	void removeSignalListener(Runnable listener) {
+		QueueSignals.removeListener(signals, listener);
+	}
+
+	long getSignalTimeout() {
+		return signalTimeout;
+	}
+
+	/**
+	 * Waits before the next poll of all partitions for a signal of any of them, or sleeps for poll delay, if signals are not enabled.
+	 * @return waited time in nanoseconds.
+	 */
+	private long awaitPartitions(long[] signalVersions, long pollDelay, long remaining) {
+		long start = System.nanoTime();
+		if (signalVersions != null) {
+			QueueSignals.awaitAny(signals, signalVersions, Math.min(signalTimeout, remaining));
+		} else {
+			try {
+				Thread.sleep(Math.max(0, pollDelay));
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		return System.nanoTime() - start;
+	}
+
+	private PreparedGet[][] prepareGets(List<BasicDBObject> laneQueries) {
+		PreparedGet[][] gets = new PreparedGet[laneQueries.size()][partitions.length];
+		for (int lane = 0; lane < gets.length; lane++) {
+			for (int i = 0; i < partitions.length; i++) {
+				gets[lane][i] = partitions[i].prepareGet(laneQueries.get(lane));
+			}
+		}
+
+		return gets;
+	}
+
+	BasicDBObject convertQuery(Query query) {
+		return checkQuery((BasicDBObject) queryMapper.getMappedObject(query.getQueryObject(), null));
+	}
+
+	RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	int homePartition() {
+		return homePartition.get();
+	}
+
+	/**
+	 * @return queries reading every lane, or just the given query, if lanes are not enabled or it selects a lane itself.
+	 * The first lane also reads messages without a lane, put before lanes were enabled or without them.
+	 */
+	private List<BasicDBObject> laneQueries(BasicDBObject query) {
+		if (!lanes.isEnabled() || query.containsField(PriorityLanes.FIELD)) return Collections.singletonList(query);
+
+		List<BasicDBObject> laneQueries = new ArrayList<>();
+		List<String> names = lanes.getNames();
+		laneQueries.add(new BasicDBObject(query).append(PriorityLanes.FIELD, new BasicDBObject("$in", Arrays.asList(names.get(0), null))));
+		for (String lane : names.subList(1, names.size())) {
+			laneQueries.add(new BasicDBObject(query).append(PriorityLanes.FIELD, lane));
+		}
+
+		return laneQueries;
+	}
+
+	/**
+	 * @return indexes of lane queries in order the next read attempt should try them.
+	 */
+	int[] scheduleLanes(int laneQueries) {
+		return laneQueries == 1 ? SINGLE_LANE : lanes.schedule();
+	}
+
+	<T extends Message> T convertMessage(Class<T> clazz, BasicDBObject basicDBObject, int partition) {
+		decompress(basicDBObject);
+		T result = convertFromMongoType(clazz, basicDBObject);
+		result.setPartition(partition);
+		result.setId(basicDBObject.getObjectId("id").toHexString());
+		ObjectId lease = basicDBObject.getObjectId("lease");
+		result.setLease(lease != null ? lease.toHexString() : null);
+		result.setDeliveries(basicDBObject.getInt("deliveries", 0));
+
+		return result;
 	}
 
 	private <T> T convertFromMongoType(Class<T> clazz, BasicDBObject dbObject) {
-		return converter.read(clazz, dbObject);
+		Class<? extends T> type = typeAliases.resolve(clazz, dbObject.get("_class"));
+		MessageCodec<Message> codec = codecs.find(type);
+		if (codec != null) {
+			return clazz.cast(codec.decode(dbObject));
+		}
+
+		return converter.read(type, dbObject);
 	}
 
-	private <T> BasicDBObject convertToMongoType(T message) {
-		BasicDBObject basicDBObject = (BasicDBObject) converter.convertToMongoType(message);
-		basicDBObject.put("_class", message.getClass().getName());
+	private BasicDBObject convertToMongoType(Message message) {
+		MessageCodec<Message> codec = codecs.find(message.getClass());
+		BasicDBObject basicDBObject = codec != null
+				? codec.encode(message)
+				: (BasicDBObject) converter.convertToMongoType(message);
+		basicDBObject.put("_class", typeAliases.alias(message.getClass()));
+		if (lanes.isEnabled()) {
+			basicDBObject.put(PriorityLanes.FIELD, lanes.laneOf(message));
+		}
+
+		return compress(basicDBObject);
+	}
+
+	private BasicDBObject compress(BasicDBObject basicDBObject) {
+		if (!compression.isEnabled()) return basicDBObject;
+
+		BasicDBObject result = new BasicDBObject();
+		BasicDBObject compressible = new BasicDBObject();
+		for (Map.Entry<String, Object> entry : basicDBObject.entrySet()) {
+			String key = entry.getKey();
+			(isUncompressed(key) ? result : compressible).put(key, entry.getValue());
+		}
+		if (compressible.isEmpty()) return basicDBObject;
+
+		byte[] encoded = new DefaultDBEncoder().encode(compressible);
+		if (encoded.length < compression.getThreshold()) return basicDBObject;
+
+		result.put(COMPRESSED_FIELD, compression.getCompressor().compress(encoded));
+		return result;
+	}
+
+	/**
+	 * @return whether given top level payload field is never compressed, so it can be queried and indexed.
+	 */
+	private boolean isUncompressed(String field) {
+		return !compression.isEnabled() || field.equals("_class") || field.equals(PriorityLanes.FIELD)
+				|| compression.getUncompressedFields().contains(field);
+	}
+
+	/**
+	 * Checks that query filters only on uncompressed fields, including fields of <b>$and</b>, <b>$or</b> and <b>$nor</b> clauses,
+	 * since messages with compressed payloads would never match it.
+	 * @return given query.
+	 * @throws IllegalArgumentException if compression is enabled and a queried field is not listed as uncompressed.
+	 */
+	private BasicDBObject checkQuery(BasicDBObject query) {
+		if (!compression.isEnabled()) return query;
+
+		for (Map.Entry<String, Object> entry : query.entrySet()) {
+			if (entry.getKey().startsWith("$")) {
+				if (entry.getValue() instanceof List) {
+					for (Object clause : (List<?>) entry.getValue()) {
+						if (clause instanceof BasicDBObject) checkQuery((BasicDBObject) clause);
+					}
+				}
+				continue;
+			}
+
+			String field = entry.getKey().split("\\.")[0];
+			if (!isUncompressed(field))
+				throw new IllegalArgumentException("Queried field " + field + " should be listed in uncompressed fields of compression options.");
+		}
+
+		return query;
+	}
+
+	private void decompress(BasicDBObject basicDBObject) {
+		Object compressed = basicDBObject.removeField(COMPRESSED_FIELD);
+		if (compressed == null) return;
+
+		byte[] data = compressed instanceof Binary ? ((Binary) compressed).getData() : (byte[]) compressed;
+		byte[] encoded = compression.getCompressor().decompress(data);
+		basicDBObject.putAll(new DefaultDBDecoder().decode(encoded, (DBCollection) null));
+	}
+
+	private static final class CachedCount {
+
+		private final long count;
+		private final long timestamp;
+		private final long expiresAt;
+
+		private CachedCount(long count, long timestamp, long expiresAt) {
+			this.count = count;
+			this.timestamp = timestamp;
+			this.expiresAt = expiresAt;
+		}
 
-		return basicDBObject;
 	}
 
 }
@@ -0,0 +1,105 @@
+package by.segg3r.mongoqueue;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link QueueMetrics} publishing to a Micrometer {@link MeterRegistry}, with every meter tagged by queue name.
+ * Requires <b>io.micrometer:micrometer-core</b> on the classpath, which is an optional dependency.
+ */
+public class MicrometerQueueMetrics implements QueueMetrics {
+
+	private final Timer send;
+	private final Timer get;
+	private final Timer ack;
+	private final Timer reset;
+	private final Timer sleep;
+	private final Timer claimLag;
+	private final Counter sent;
+	private final Counter claimed;
+	private final Counter acknowledged;
+	private final Counter resetLeases;
+	private final DistributionSummary attempts;
+	private final DistributionSummary emptyPolls;
+
+	public MicrometerQueueMetrics(MeterRegistry registry, String queue) {
+		this.send = operationTimer(registry, queue, "send");
+		this.get = operationTimer(registry, queue, "get");
+		this.ack = operationTimer(registry, queue, "ack");
+		this.reset = operationTimer(registry, queue, "reset");
+		this.sleep = Timer.builder("mongo.queue.get.sleep")
+				.description("Time spent waiting between claim attempts of a get")
+				.tag("queue", queue)
+				.register(registry);
+		this.claimLag = Timer.builder("mongo.queue.claim.lag")
+				.description("Time between a message was created and claimed")
+				.tag("queue", queue)
+				.publishPercentileHistogram()
+				.register(registry);
+		this.sent = messageCounter(registry, queue, "sent");
+		this.claimed = messageCounter(registry, queue, "claimed");
+		this.acknowledged = messageCounter(registry, queue, "acknowledged");
+		this.resetLeases = messageCounter(registry, queue, "reset");
+		this.attempts = DistributionSummary.builder("mongo.queue.get.attempts")
+				.description("Claim attempts made by a get")
+				.tag("queue", queue)
+				.register(registry);
+		this.emptyPolls = DistributionSummary.builder("mongo.queue.get.empty.polls")
+				.description("Claim attempts of a get which found no message")
+				.tag("queue", queue)
+				.register(registry);
+	}
+
+	@Override
+	public void recordSend(int messages, long nanos) {
+		send.record(nanos, TimeUnit.NANOSECONDS);
+		sent.increment(messages);
+	}
+
+	@Override
+	public void recordGet(int messages, int attempts, int emptyPolls, long sleptNanos, long nanos) {
+		get.record(nanos, TimeUnit.NANOSECONDS);
+		sleep.record(sleptNanos, TimeUnit.NANOSECONDS);
+		claimed.increment(messages);
+		this.attempts.record(attempts);
+		this.emptyPolls.record(emptyPolls);
+	}
+
+	@Override
+	public void recordAck(int messages, long nanos) {
+		ack.record(nanos, TimeUnit.NANOSECONDS);
+		acknowledged.increment(messages);
+	}
+
+	@Override
+	public void recordReset(int messages, long nanos) {
+		reset.record(nanos, TimeUnit.NANOSECONDS);
+		resetLeases.increment(messages);
+	}
+
+	@Override
+	public void recordClaimLag(long millis) {
+		claimLag.record(Math.max(millis, 0), TimeUnit.MILLISECONDS);
+	}
+
+	private static Timer operationTimer(MeterRegistry registry, String queue, String operation) {
+		return Timer.builder("mongo.queue.operation")
+				.description("Latency of queue operations")
+				.tag("queue", queue)
+				.tag("operation", operation)
+				.publishPercentileHistogram()
+				.register(registry);
+	}
+
+	private static Counter messageCounter(MeterRegistry registry, String queue, String event) {
+		return Counter.builder("mongo.queue.messages")
+				.description("Messages passed through queue operations")
+				.tag("queue", queue)
+				.tag("event", event)
+				.register(registry);
+	}
+
+}
@@ -0,0 +1,38 @@
+package by.segg3r.mongoqueue;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Strategy choosing a partition for a message put to a partitioned {@link MessageQueueTemplate}.
+ * See {@link QueueOptions#getPartitions()}.
+ */
+@FunctionalInterface
+public interface Partitioner {
+
+	/**
+	 * @return partitioner spreading messages across partitions in turn.
+	 */
+	static Partitioner roundRobin() {
+		AtomicInteger counter = new AtomicInteger();
+		return (message, partitions) -> Math.floorMod(counter.getAndIncrement(), partitions);
+	}
+
+	/**
+	 * @param key function extracting partition key of a message. Messages with equal keys are put to the same partition.
+	 * @return partitioner choosing partition by hash of message key.
+	 */
+	static Partitioner byKey(Function<? super Message, ?> key) {
+		Objects.requireNonNull(key);
+		return (message, partitions) -> Math.floorMod(Objects.hashCode(key.apply(message)), partitions);
+	}
+
+	/**
+	 * @param message message being put.
+	 * @param partitions number of partitions.
+	 * @return partition index in range [0, partitions).
+	 */
+	int partition(Message message, int partitions);
+
+}
@@ -0,0 +1,20 @@
+package by.segg3r.mongoqueue;
+
+/**
+ * Compression algorithm applied by {@link MessageQueueTemplate} to large payloads. See {@link CompressionOptions}.
+ * Implementations should be thread safe.
+ */
+public interface PayloadCompressor {
+
+	/**
+	 * @return compressor using JDK {@link java.util.zip.Deflater}.
+	 */
+	static PayloadCompressor deflate() {
+		return new DeflatePayloadCompressor();
+	}
+
+	byte[] compress(byte[] data);
+
+	byte[] decompress(byte[] data);
+
+}
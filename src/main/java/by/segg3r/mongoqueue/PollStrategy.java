@@ -0,0 +1,54 @@
+package by.segg3r.mongoqueue;
+
+/**
+ * Strategy of delays between poll attempts of a waiting read, see {@link ReadTimings#withPollStrategy(PollStrategy)}.
+ * A single instance may be shared by many reading threads, so implementations should be thread safe.
+ */
+public interface PollStrategy {
+
+	/**
+	 * Polls with the same delay between all attempts.
+	 *
+	 * @param delay delay in milliseconds
+	 */
+	static PollStrategy fixed(long delay) {
+		return new FixedPollStrategy(delay);
+	}
+
+	/**
+	 * Polls with exponentially growing delays, starting at <b>min</b> and capped by <b>max</b>,
+	 * each of them randomized between 0 and the current cap (full jitter), so readers do not poll in lock step.
+	 *
+	 * @param min delay cap in milliseconds after the first empty poll
+	 * @param max maximum delay cap in milliseconds
+	 */
+	static PollStrategy exponential(long min, long max) {
+		return new ExponentialPollStrategy(min, max);
+	}
+
+	/**
+	 * Polls with delays between <b>min</b> and <b>max</b>, depending on the recent hit rate of all reads using this strategy:
+	 * the more polls find a message, the shorter the delay. Delays are randomized by up to a half.
+	 *
+	 * @param min delay in milliseconds when every poll finds a message
+	 * @param max delay in milliseconds when no poll finds a message
+	 */
+	static PollStrategy adaptive(long min, long max) {
+		return new AdaptivePollStrategy(min, max);
+	}
+
+	/**
+	 * @param attempt number of consecutive empty polls of the current read, starting from 1
+	 * @return delay in milliseconds before the next poll
+	 */
+	long nextDelay(int attempt);
+
+	/**
+	 * Called after every poll.
+	 *
+	 * @param hit whether the poll found a message
+	 */
+	default void onPoll(boolean hit) {
+	}
+
+}
@@ -0,0 +1,111 @@
+package by.segg3r.mongoqueue;
+
+import org.springframework.data.mongodb.core.query.Query;
+
+/**
+ * Class describing options for {@link MessageQueueTemplate#prefetch(Class, PrefetchOptions)}.
+ * It is possible to specify {@link PrefetchOptions#bufferSize}, {@link PrefetchOptions#batchSize}, read {@link PrefetchOptions#timings}
+ * and {@link PrefetchOptions#query}, and {@link PrefetchOptions#renewInterval} of leases.
+ */
+public class PrefetchOptions {
+
+	private static final int DEFAULT_BUFFER_SIZE = 100;
+	private static final int DEFAULT_BATCH_SIZE = 20;
+
+	public static PrefetchOptions defaultOptions() {
+		return new PrefetchOptions()
+				.withBufferSize(DEFAULT_BUFFER_SIZE)
+				.withBatchSize(DEFAULT_BATCH_SIZE)
+				.withTimings(ReadTimings.defaultTimings())
+				.withQuery(new Query())
+				.withRenewInterval(0);
+	}
+
+	public static PrefetchOptions buffering(int bufferSize) {
+		return defaultOptions()
+				.withBufferSize(bufferSize);
+	}
+
+	/**
+	 * Maximum number of leased messages waiting in the local buffer.
+	 */
+	private int bufferSize;
+
+	/**
+	 * Maximum number of messages read from the queue at once.
+	 */
+	private int batchSize;
+
+	/**
+	 * Timings of prefetching reads. Acknowledge period is the lease duration, renewed for buffered and taken messages.
+	 */
+	private ReadTimings timings;
+
+	/**
+	 * Filter of prefetched messages.
+	 */
+	private Query query;
+
+	/**
+	 * Period in milliseconds between lease renewals of buffered and taken messages.
+	 * When 0, a third of the acknowledge period is used.
+	 */
+	private long renewInterval;
+
+	private PrefetchOptions() {
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public ReadTimings getTimings() {
+		return timings;
+	}
+
+	public Query getQuery() {
+		return query;
+	}
+
+	public long getRenewInterval() {
+		return renewInterval > 0 ? renewInterval : Math.max(timings.getAcknowledgePeriod() * 1000L / 3, 1);
+	}
+
+	public PrefetchOptions withBufferSize(int bufferSize) {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("buffer size must be positive");
+		}
+
+		this.bufferSize = bufferSize;
+		return this;
+	}
+
+	public PrefetchOptions withBatchSize(int batchSize) {
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("batch size must be positive");
+		}
+
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	public PrefetchOptions withTimings(ReadTimings timings) {
+		this.timings = timings;
+		return this;
+	}
+
+	public PrefetchOptions withQuery(Query query) {
+		this.query = query;
+		return this;
+	}
+
+	public PrefetchOptions withRenewInterval(long renewInterval) {
+		this.renewInterval = renewInterval;
+		return this;
+	}
+
+}
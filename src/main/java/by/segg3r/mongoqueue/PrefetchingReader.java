@@ -0,0 +1,187 @@
+package by.segg3r.mongoqueue;
+
+import com.mongodb.BasicDBObject;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reader keeping a bounded local buffer of leased messages, refilled in background by batch reads,
+ * so {@link #take()} does not wait for the database while there are messages in the queue.
+ * Leases of buffered messages, and of taken messages until they are acknowledged, requeued or released through this reader,
+ * are renewed every {@link PrefetchOptions#getRenewInterval()} by a {@link LeaseHeartbeat}.
+ * Created with {@link MessageQueueTemplate#prefetch(Class, PrefetchOptions)}.
+ * @param <T> message type.
+ */
+public class PrefetchingReader<T extends Message> implements AutoCloseable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(PrefetchingReader.class);
+
+	private static final long READ_FAILURE_DELAY = 1000; // 1 second
+	private static final long CLOSE_CHECK_INTERVAL = 100; // 100 milliseconds
+	private static final AtomicInteger READER_COUNTER = new AtomicInteger();
+
+	private final MessageQueueTemplate template;
+	private final Class<T> clazz;
+	private final PrefetchOptions options;
+	private final BasicDBObject query;
+
+	private final BlockingQueue<T> buffer = new LinkedBlockingQueue<>();
+	private final Semaphore space;
+	private final LeaseHeartbeat heartbeat;
+	private final Thread fetcher;
+	private volatile boolean running = true;
+
+	PrefetchingReader(MessageQueueTemplate template, Class<T> clazz, PrefetchOptions options, BasicDBObject query) {
+		this.template = template;
+		this.clazz = clazz;
+		this.options = options;
+		this.query = query;
+		this.space = new Semaphore(options.getBufferSize());
+		this.heartbeat = template.heartbeat(Duration.ofSeconds(options.getTimings().getAcknowledgePeriod()),
+				Duration.ofMillis(options.getRenewInterval()));
+
+		this.fetcher = new Thread(this::fetch, "mongo-queue-prefetch-" + READER_COUNTER.incrementAndGet());
+		this.fetcher.setDaemon(true);
+		this.fetcher.start();
+	}
+
+	/**
+	 * Takes next message from the buffer, waiting for one if the buffer is empty.
+	 * @return next message.
+	 * @throws IllegalStateException if the reader is closed before or while waiting.
+	 */
+	public T take() throws InterruptedException {
+		while (running) {
+			T message = buffer.poll(CLOSE_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+			if (message != null) {
+				space.release();
+				return message;
+			}
+		}
+
+		throw new IllegalStateException("Prefetching reader is closed");
+	}
+
+	/**
+	 * Takes next message from the buffer, waiting up to timeout for one if the buffer is empty.
+	 * @return next message, or <b>null</b>, if no message was prefetched before timeout.
+	 */
+	public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+		T message = buffer.poll(timeout, unit);
+		if (message != null) space.release();
+
+		return message;
+	}
+
+	/**
+	 * @return number of messages waiting in the buffer.
+	 */
+	public int getBuffered() {
+		return buffer.size();
+	}
+
+	/**
+	 * Acknowledges taken message and stops renewing its lease.
+	 * @see MessageQueueTemplate#acknowledge(Message)
+	 */
+	public void acknowledge(T message) {
+		heartbeat.untrack(message);
+		template.acknowledge(message);
+	}
+
+	/**
+	 * Requeues taken message and stops renewing its lease.
+	 * @see MessageQueueTemplate#requeue(Message, Date)
+	 */
+	public void requeue(T message, Date earliestGet) {
+		heartbeat.untrack(message);
+		template.requeue(message, earliestGet);
+	}
+
+	/**
+	 * Releases taken message back to the queue and stops renewing its lease.
+	 * @see MessageQueueTemplate#release(java.util.Collection)
+	 */
+	public void release(T message) {
+		heartbeat.untrack(message);
+		template.release(Collections.singletonList(message));
+	}
+
+	/**
+	 * Stops prefetching and renewing leases, and releases buffered messages back to the queue.
+	 * Leases of taken, but not acknowledged messages expire after their acknowledge period.
+	 */
+	@Override
+	public void close() {
+		running = false;
+		heartbeat.close();
+		fetcher.interrupt();
+		try {
+			fetcher.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+
+		List<T> buffered = new ArrayList<>();
+		buffer.drainTo(buffered);
+		for (T message : buffered) {
+			heartbeat.untrack(message);
+		}
+
+		if (!buffered.isEmpty()) {
+			try {
+				template.release(buffered);
+			} catch (RuntimeException ex) {
+				LOG.warn("Could not release {} buffered messages, they will be given again after their leases expire", buffered.size(), ex);
+			}
+		}
+	}
+
+	private void fetch() {
+		while (running) {
+			int permits;
+			try {
+				space.acquire();
+				permits = 1;
+				while (permits < options.getBatchSize() && space.tryAcquire()) {
+					permits++;
+				}
+			} catch (InterruptedException ex) {
+				return;
+			}
+
+			List<T> messages;
+			try {
+				messages = template.readBatch(clazz, permits, options.getTimings(), query);
+			} catch (RuntimeException ex) {
+				space.release(permits);
+				if (!running) return;
+
+				LOG.warn("Could not prefetch messages of {}, retrying in {} ms", clazz.getName(), READ_FAILURE_DELAY, ex);
+				try {
+					Thread.sleep(READ_FAILURE_DELAY);
+				} catch (InterruptedException interrupted) {
+					return;
+				}
+				continue;
+			}
+
+			space.release(permits - messages.size());
+			for (T message : messages) {
+				heartbeat.track(message);
+				buffer.add(message);
+			}
+		}
+	}
+
+}
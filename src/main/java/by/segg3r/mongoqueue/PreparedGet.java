@@ -0,0 +1,106 @@
+package by.segg3r.mongoqueue;
+
+import com.mongodb.BasicDBObject;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Objects;
+import org.bson.types.ObjectId;
+
+/**
+ * Reusable get() of a {@link MessageQueue} with a fixed query. The query, update and their <b>payload.</b> prefixed fields
+ * are built once, and only the current time and lease token are replaced in them by every call.
+ * With a {@link QueueOptions#getClaimSpread() claim spread}, the query matches all stripes, and {@link #query(Date, int)} a single one.
+ * Once a stripe has no message, further claims of the instance use the query of all stripes until it finds one again.
+ * Not thread safe, since the documents are reused: every reading thread should prepare its own instance.
+ * @see MessageQueue#prepareGet(BasicDBObject)
+ */
+public final class PreparedGet {
+
+	private final MessageQueue queue;
+	private final BasicDBObject query;
+	private final BasicDBObject stripeQuery;
+	private final BasicDBObject earliestGet = new BasicDBObject();
+	private final BasicDBObject set = new BasicDBObject("running", true);
+	private final BasicDBObject update = new BasicDBObject("$set", set).append("$inc", new BasicDBObject("deliveries", 1));
+	//whether the last claim missed its stripe, so the next one claims the head of all stripes right away
+	private boolean stripeMissed;
+
+	PreparedGet(final MessageQueue queue, final BasicDBObject query, final int stripes) {
+		Objects.requireNonNull(query);
+
+		this.queue = queue;
+		this.query = new BasicDBObject("running", false);
+		if (stripes > 1) {
+			//listing every stripe lets the index starting with the stripe merge sorted ranges instead of sorting in memory
+			final List<Object> all = new ArrayList<>(stripes + 1);
+			all.add(null);//messages stored before the spread was configured
+			for (int stripe = 0; stripe < stripes; ++stripe) {
+				all.add(stripe);
+			}
+			this.query.append(MessageQueue.STRIPE_FIELD, new BasicDBObject("$in", all));
+		}
+		for (final Entry<String, Object> field : query.entrySet()) {
+			this.query.append("payload." + field.getKey(), field.getValue());
+		}
+		this.query.append("earliestGet", earliestGet);
+		this.stripeQuery = new BasicDBObject(this.query);
+	}
+
+	/**
+	 * Get a non running message from queue
+	 *
+	 * @param resetDuration duration in seconds before this message is considered abandoned and will be given with another call to get()
+	 * @param waitDuration duration in milliseconds to keep polling before returning null
+	 * @param pollStrategy strategy of delays between poll attempts. Should not be null
+	 * @return message or null
+	 * @see MessageQueue#get(BasicDBObject, int, int, PollStrategy)
+	 */
+	public BasicDBObject get(final int resetDuration, final int waitDuration, final PollStrategy pollStrategy) {
+		return queue.get(this, resetDuration, waitDuration, pollStrategy);
+	}
+
+	/**
+	 * Claims a message without waiting, resetting abandoned messages or recording metrics, for reads polling several queues.
+	 * @return message or null
+	 */
+	BasicDBObject claim(final int resetDuration) {
+		return queue.claim(this, resetDuration);
+	}
+
+	/**
+	 * @return query matching messages available at given instant.
+	 */
+	BasicDBObject query(final Date now) {
+		earliestGet.put("$lte", now);
+		return query;
+	}
+
+	/**
+	 * @return query matching messages of given stripe available at given instant.
+	 */
+	BasicDBObject query(final Date now, final int stripe) {
+		earliestGet.put("$lte", now);
+		stripeQuery.put(MessageQueue.STRIPE_FIELD, stripe);
+		return stripeQuery;
+	}
+
+	boolean isStripeMissed() {
+		return stripeMissed;
+	}
+
+	void setStripeMissed(final boolean stripeMissed) {
+		this.stripeMissed = stripeMissed;
+	}
+
+	/**
+	 * @return update leasing a message with given lease token until given instant, and counting its delivery.
+	 */
+	BasicDBObject update(final Date resetTimestamp, final ObjectId lease) {
+		set.put("resetTimestamp", resetTimestamp);
+		set.put("lease", lease);
+		return update;
+	}
+
+}
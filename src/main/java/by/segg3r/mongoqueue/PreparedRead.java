@@ -0,0 +1,52 @@
+package by.segg3r.mongoqueue;
+
+import com.mongodb.BasicDBObject;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reusable read of a {@link MessageQueueTemplate} with fixed message type, timings and query.
+ * The query is mapped by Spring and prepared for every priority lane and partition once, see {@link PreparedGet}.
+ * Not thread safe: every reading thread should prepare its own instance.
+ * @see MessageQueueTemplate#prepareRead(Class, ReadTimings, BasicDBObject)
+ * @param <T> message type.
+ */
+public final class PreparedRead<T extends Message> {
+
+	private final MessageQueueTemplate template;
+	private final Class<T> clazz;
+	private final ReadTimings timings;
+	//by lane and partition
+	private final PreparedGet[][] gets;
+
+	PreparedRead(MessageQueueTemplate template, Class<T> clazz, ReadTimings timings, PreparedGet[][] gets) {
+		this.template = template;
+		this.clazz = clazz;
+		this.timings = timings;
+		this.gets = gets;
+	}
+
+	/**
+	 * Reads top message from the queue, matching prepared query.
+	 * @see MessageQueueTemplate#read(Class, ReadTimings, BasicDBObject)
+	 * @return message from the top of the queue, or <b>null</b>, if no matching message found.
+	 */
+	public T read() {
+		if (gets.length == 1 && gets[0].length == 1) {
+			BasicDBObject basicDBObject = gets[0][0].get(timings.getAcknowledgePeriod(), timings.getWaitDuration(), timings.getPollStrategy());
+			if (basicDBObject == null) return null;
+
+			return template.convertMessage(clazz, basicDBObject, 0);
+		}
+
+		List<T> messages = template.pollPartitions(gets.length, 1, timings, (lane, partition, max) -> {
+			BasicDBObject basicDBObject = gets[lane][partition].claim(timings.getAcknowledgePeriod());
+			return basicDBObject != null
+					? Collections.singletonList(template.convertMessage(clazz, basicDBObject, partition))
+					: Collections.<T>emptyList();
+		});
+
+		return messages.isEmpty() ? null : messages.get(0);
+	}
+
+}
@@ -0,0 +1,141 @@
+package by.segg3r.mongoqueue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+/**
+ * Named priority lanes of a {@link MessageQueueTemplate}, see {@link QueueOptions#getLanes()}.
+ * Every put message is stored with a <b>_lane</b> field chosen by the lane selector, which is the first lane by default.
+ * Messages without the field, put before lanes were enabled or through a queue without lanes, are read as messages of the first lane.
+ * Reads claim from lanes by their weights, for example 70/20/10, with a smooth weighted round robin,
+ * and fall through to other lanes, heaviest first, when the scheduled lane has no matching message.
+ * Indexes created with {@link MessageQueueTemplate#ensureIndex(MessageIndex)} start with the lane, so every lane is a separate index range.
+ * A single lane can be read or counted with a query on <b>_lane</b> field.
+ * Waiting reads of several lanes poll all of them once per attempt, and wait between attempts for {@link QueueOptions#isSignals() signals} when enabled.
+ */
+public final class PriorityLanes {
+
+	static final String FIELD = "_lane";
+
+	public static PriorityLanes create() {
+		return new PriorityLanes();
+	}
+
+	private final List<String> names = new ArrayList<>();
+	private final List<Integer> weights = new ArrayList<>();
+	//set by configuration, read by concurrent writers without locking
+	private volatile Function<? super Message, String> selector;
+	//lane orders of one cycle of smooth weighted round robin, read by concurrent readers without locking
+	private volatile int[][] sequence = new int[0][];
+	private final AtomicInteger next = new AtomicInteger();
+
+	private PriorityLanes() {
+	}
+
+	/**
+	 * @param name lane name, stored in every message of the lane.
+	 * @param weight share of reads claiming from this lane first. Should be positive, and small like a percent, since the schedule of reads is precomputed for the sum of weights.
+	 * @return this lanes.
+	 */
+	public synchronized PriorityLanes withLane(String name, int weight) {
+		Objects.requireNonNull(name);
+		if (weight <= 0) {
+			throw new IllegalArgumentException("lane weight must be positive");
+		}
+		if (names.contains(name)) {
+			throw new IllegalArgumentException("lane " + name + " is already added");
+		}
+
+		names.add(name);
+		weights.add(weight);
+		sequence = buildSequence();
+		return this;
+	}
+
+	/**
+	 * @param selector function choosing lane name of a put message. Messages with <b>null</b> lane go to the first lane.
+	 * @return this lanes.
+	 */
+	public PriorityLanes withSelector(Function<? super Message, String> selector) {
+		this.selector = selector;
+		return this;
+	}
+
+	public List<String> getNames() {
+		return Collections.unmodifiableList(names);
+	}
+
+	public boolean isEnabled() {
+		return !names.isEmpty();
+	}
+
+	/**
+	 * @return lane name of given message.
+	 * @throws IllegalArgumentException if the selector chose an unknown lane.
+	 */
+	String laneOf(Message message) {
+		String lane = selector != null ? selector.apply(message) : null;
+		if (lane == null) return names.get(0);
+		if (!names.contains(lane)) {
+			throw new IllegalArgumentException("Unknown lane " + lane + " of message " + message.getClass().getName());
+		}
+
+		return lane;
+	}
+
+	/**
+	 * @return indexes of lanes in order they should be tried by the next read attempt. Should not be modified.
+	 */
+	int[] schedule() {
+		int[][] orders = sequence;
+		return orders[Math.floorMod(next.getAndIncrement(), orders.length)];
+	}
+
+	/**
+	 * Precomputes one cycle of smooth weighted round robin, with as many lane orders as the sum of weights divided by their greatest common divisor.
+	 * Every order starts with the scheduled lane and falls through to other lanes, heaviest first.
+	 */
+	private int[][] buildSequence() {
+		int divisor = weights.stream().reduce(0, PriorityLanes::gcd);
+		int[] reduced = weights.stream().mapToInt(weight -> weight / divisor).toArray();
+		int[] byWeight = IntStream.range(0, names.size()).boxed()
+				.sorted((first, second) -> Integer.compare(weights.get(second), weights.get(first)))
+				.mapToInt(Integer::intValue)
+				.toArray();
+		long totalWeight = IntStream.of(reduced).asLongStream().sum();
+		long[] current = new long[names.size()];
+		int[][] orders = new int[(int) totalWeight][];
+		for (int slot = 0; slot < orders.length; slot++) {
+			int scheduled = 0;
+			for (int i = 0; i < current.length; i++) {
+				current[i] += reduced[i];
+				if (current[i] > current[scheduled]) {
+					scheduled = i;
+				}
+			}
+			current[scheduled] -= totalWeight;
+
+			int[] order = new int[byWeight.length];
+			order[0] = scheduled;
+			int position = 1;
+			for (int lane : byWeight) {
+				if (lane != scheduled) {
+					order[position++] = lane;
+				}
+			}
+			orders[slot] = order;
+		}
+
+		return orders;
+	}
+
+	private static int gcd(int first, int second) {
+		return second == 0 ? first : gcd(second, first % second);
+	}
+
+}
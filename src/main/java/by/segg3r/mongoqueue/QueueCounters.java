@@ -0,0 +1,133 @@
+package by.segg3r.mongoqueue;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exact number of messages in a queue, and of messages with every value of configured payload fields,
+ * kept in <b>&lt;queue&gt;.counters</b> collection and updated with every send and ack of {@link MessageQueue}.
+ */
+final class QueueCounters {
+
+	private static final String TOTAL = "total";
+
+	private final DBCollection collection;
+	private final List<String> fields;
+	private final BasicDBObject projection = new BasicDBObject();
+
+	QueueCounters(final DBCollection collection, final List<String> fields) {
+		this.collection = collection;
+		this.fields = new ArrayList<>(fields);
+		for (final String field : fields) {
+			projection.append("payload." + field, 1);
+		}
+	}
+
+	/**
+	 * @return whether counters need payloads of removed and replaced messages, rather than only their number.
+	 */
+	boolean hasFields() {
+		return !fields.isEmpty();
+	}
+
+	/**
+	 * @return projection of queue documents with counted payload fields.
+	 */
+	BasicDBObject getProjection() {
+		return projection;
+	}
+
+	void add(final long total) {
+		if (total != 0) {
+			apply(Collections.<Object, Long>singletonMap(TOTAL, total));
+		}
+	}
+
+	/**
+	 * @param added payloads of added messages. Should not be null
+	 * @param removed payloads of removed messages. Should not be null
+	 */
+	void add(final Collection<? extends DBObject> added, final Collection<? extends DBObject> removed) {
+		final Map<Object, Long> deltas = new LinkedHashMap<>();
+		deltas.put(TOTAL, (long) added.size() - removed.size());
+		collect(deltas, added, 1);
+		collect(deltas, removed, -1);
+		apply(deltas);
+	}
+
+	long count() {
+		return read(TOTAL);
+	}
+
+	long count(final String field, final Object value) {
+		return read(key(field, value));
+	}
+
+	/**
+	 * Replaces all counters with given values.
+	 */
+	void reset(final long total, final Map<String, Map<Object, Long>> byField) {
+		collection.remove(new BasicDBObject());
+
+		final BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+		bulk.insert(new BasicDBObject("_id", TOTAL).append("count", total));
+		for (final Map.Entry<String, Map<Object, Long>> field : byField.entrySet()) {
+			for (final Map.Entry<Object, Long> value : field.getValue().entrySet()) {
+				bulk.insert(new BasicDBObject("_id", key(field.getKey(), value.getKey())).append("count", value.getValue()));
+			}
+		}
+		bulk.execute();
+	}
+
+	List<String> getFields() {
+		return fields;
+	}
+
+	private void collect(final Map<Object, Long> deltas, final Collection<? extends DBObject> payloads, final long delta) {
+		if (fields.isEmpty()) return;
+
+		for (final DBObject payload : payloads) {
+			for (final String field : fields) {
+				final Object value = payload.get(field);
+				if (value != null) {
+					deltas.merge(key(field, value), delta, Long::sum);
+				}
+			}
+		}
+	}
+
+	private void apply(final Map<Object, Long> deltas) {
+		BulkWriteOperation bulk = null;
+		for (final Map.Entry<Object, Long> delta : deltas.entrySet()) {
+			if (delta.getValue() == 0) continue;
+
+			if (bulk == null) {
+				bulk = collection.initializeUnorderedBulkOperation();
+			}
+			bulk.find(new BasicDBObject("_id", delta.getKey())).upsert()
+					.updateOne(new BasicDBObject("$inc", new BasicDBObject("count", delta.getValue())));
+		}
+
+		if (bulk != null) {
+			bulk.execute();
+		}
+	}
+
+	private long read(final Object id) {
+		final DBObject counter = collection.findOne(new BasicDBObject("_id", id));
+		return counter == null ? 0 : ((Number) counter.get("count")).longValue();
+	}
+
+	private static BasicDBObject key(final String field, final Object value) {
+		return new BasicDBObject("field", field).append("value", value);
+	}
+
+}
@@ -0,0 +1,63 @@
+package by.segg3r.mongoqueue;
+
+/**
+ * Hook recording hot path metrics of {@link MessageQueue}, configured with {@link QueueOptions#withMetrics(QueueMetrics)}.
+ * All methods are called synchronously on the calling thread, so implementations should be cheap and thread safe.
+ * @see MicrometerQueueMetrics
+ */
+public interface QueueMetrics {
+
+	/**
+	 * Metrics which record nothing.
+	 */
+	QueueMetrics NOOP = new QueueMetrics() {
+	};
+
+	/**
+	 * Called after send() or sendBatch().
+	 *
+	 * @param messages number of stored messages
+	 * @param nanos duration of the operation in nanoseconds
+	 */
+	default void recordSend(int messages, long nanos) {
+	}
+
+	/**
+	 * Called after get() or getBatch() returns.
+	 *
+	 * @param messages number of claimed messages
+	 * @param attempts number of claim attempts
+	 * @param emptyPolls number of claim attempts which found no message
+	 * @param sleptNanos time spent waiting between attempts in nanoseconds
+	 * @param nanos duration of the operation in nanoseconds
+	 */
+	default void recordGet(int messages, int attempts, int emptyPolls, long sleptNanos, long nanos) {
+	}
+
+	/**
+	 * Called after ack() or ackAll().
+	 *
+	 * @param messages number of removed messages
+	 * @param nanos duration of the operation in nanoseconds
+	 */
+	default void recordAck(int messages, long nanos) {
+	}
+
+	/**
+	 * Called after abandoned messages are reset, by get() or by the reaper.
+	 *
+	 * @param messages number of reset leases
+	 * @param nanos duration of the operation in nanoseconds
+	 */
+	default void recordReset(int messages, long nanos) {
+	}
+
+	/**
+	 * Called for every claimed message.
+	 *
+	 * @param millis time between the message was created and claimed, in milliseconds
+	 */
+	default void recordClaimLag(long millis) {
+	}
+
+}
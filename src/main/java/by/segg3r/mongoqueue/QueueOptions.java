@@ -0,0 +1,353 @@
+package by.segg3r.mongoqueue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Class describing options of a {@link MessageQueue} and {@link MessageQueueTemplate} built upon it.
+ * It is possible to enable {@link QueueOptions#signals} for push-based wakeup of waiting readers,
+ * a background {@link QueueOptions#reaperInterval reaper} of abandoned messages, relaxed {@link QueueOptions#claimSpread claim order},
+ * {@link QueueOptions#maxDeliveries} before messages are moved to dead letters, {@link QueueOptions#retryPolicy} of requeued messages,
+ * a separate store of messages delayed beyond {@link QueueOptions#delayThreshold},
+ * maintained {@link QueueOptions#counters} and {@link QueueOptions#metrics}.
+ * {@link MessageQueueTemplate} may also be configured with {@link QueueOptions#codecs} converting messages without Spring converter,
+ * {@link QueueOptions#typeAliases} stored instead of full class names, {@link QueueOptions#compression} of large payloads,
+ * a number of {@link QueueOptions#partitions} and priority {@link QueueOptions#lanes}.
+ */
+public class QueueOptions {
+
+	private static final long DEFAULT_SIGNAL_TIMEOUT = 5000; // 5 seconds
+	private static final long DEFAULT_SIGNAL_COLLECTION_SIZE = 1024 * 1024; // 1 megabyte
+	private static final long DEFAULT_REAPER_INTERVAL = 5000; // 5 seconds
+	private static final long DEFAULT_PROMOTER_INTERVAL = 1000; // 1 second
+
+	public static QueueOptions defaultOptions() {
+		return new QueueOptions()
+				.withSignals(false)
+				.withSignalTimeout(DEFAULT_SIGNAL_TIMEOUT)
+				.withSignalCollectionSize(DEFAULT_SIGNAL_COLLECTION_SIZE)
+				.withReaperInterval(0)
+				.withClaimSpread(1)
+				.withMaxDeliveries(0)
+				.withRetryPolicy(RetryPolicy.immediate())
+				.withDelayThreshold(0)
+				.withPromoterInterval(DEFAULT_PROMOTER_INTERVAL)
+				.withCounters(false, Collections.emptyList())
+				.withMetrics(QueueMetrics.NOOP)
+				.withCodecs(MessageCodecs.create())
+				.withTypeAliases(TypeAliases.create())
+				.withCompression(CompressionOptions.disabled())
+				.withPartitions(1)
+				.withPartitioner(Partitioner.roundRobin())
+				.withLanes(PriorityLanes.create());
+	}
+
+	public static QueueOptions withSignalsEnabled() {
+		return defaultOptions()
+				.withSignals(true);
+	}
+
+	public static QueueOptions withReaperEnabled() {
+		return defaultOptions()
+				.withReaperInterval(DEFAULT_REAPER_INTERVAL);
+	}
+
+	/**
+	 * Whether senders write to a capped signal collection and waiting readers are woken up by it, instead of polling.
+	 */
+	private boolean signals;
+
+	/**
+	 * Period in milliseconds a waiting reader sleeps without a signal before polling the queue again.
+	 * Covers delayed messages becoming available and abandoned messages being reset, which produce no signal.
+	 */
+	private long signalTimeout;
+
+	/**
+	 * Size in bytes of the capped signal collection.
+	 */
+	private long signalCollectionSize;
+
+	/**
+	 * Period in milliseconds between resets of abandoned messages by a background reaper, elected among all nodes
+	 * with a lock document. When 0, abandoned messages are reset by every get() call instead.
+	 */
+	private long reaperInterval;
+
+	/**
+	 * Number of stripes messages are randomly assigned to when stored. get() claims the head of a random stripe
+	 * with a single findAndModify, instead of always claiming the head of the queue, and the head of the queue only
+	 * when that stripe has no available message. Trades strict priority and FIFO order for fewer collisions
+	 * of concurrent readers on the same document. 1 means strict order.
+	 * A claim missing its stripe costs a second round trip, so after a miss a reader claims the head of the queue right away
+	 * until it finds a message there, and polls of a short or drained queue cost a single findAndModify.
+	 * Indexes of {@link MessageQueue#ensureGetIndex()} start with the stripe, so they should be ensured again when the spread is enabled.
+	 */
+	private int claimSpread;
+
+	/**
+	 * Number of deliveries after which a message, abandoned by its reader or requeued, is moved to <b>&lt;queue&gt;.dead</b>
+	 * collection instead of being given to readers again. When 0, messages are delivered any number of times.
+	 */
+	private int maxDeliveries;
+
+	/**
+	 * Policy of delays of messages requeued without an explicit earliest get instant.
+	 */
+	private RetryPolicy retryPolicy;
+
+	/**
+	 * Period in milliseconds, messages due later than which are sent to <b>&lt;queue&gt;.delayed</b> collection indexed by due time,
+	 * instead of the queue itself, so they do not grow the index used by get(). A background promoter, elected among all nodes
+	 * with a lock document, moves due messages to the queue in batches. When 0, all messages are sent to the queue.
+	 */
+	private long delayThreshold;
+
+	/**
+	 * Period in milliseconds between runs of the promoter of due delayed messages. Delayed messages are given to readers
+	 * up to this period after they are due.
+	 */
+	private long promoterInterval;
+
+	/**
+	 * Whether exact number of messages is kept in <b>&lt;queue&gt;.counters</b> collection, updated by every send and ack.
+	 * Makes counts free at the cost of an extra write per operation.
+	 */
+	private boolean counters;
+
+	/**
+	 * Top level payload fields, number of messages with every value of which is kept by {@link QueueOptions#counters}.
+	 * Makes ack of every message a findAndModify, returning the fields.
+	 */
+	private List<String> counterFields;
+
+	/**
+	 * Hook recording latencies and counts of queue operations.
+	 */
+	private QueueMetrics metrics;
+
+	/**
+	 * Codecs used by {@link MessageQueueTemplate} to convert registered message types. Other types are converted by Spring converter.
+	 */
+	private MessageCodecs codecs;
+
+	/**
+	 * Aliases {@link MessageQueueTemplate} stores in <b>_class</b> field of registered message types.
+	 */
+	private TypeAliases typeAliases;
+
+	/**
+	 * Compression {@link MessageQueueTemplate} applies to large payloads.
+	 */
+	private CompressionOptions compression;
+
+	/**
+	 * Number of collections backing {@link MessageQueueTemplate}. Partition 0 is the collection with queue name,
+	 * other partitions are collections with names suffixed by partition index, like <b>queue.1</b>.
+	 * Every reading thread is assigned a home partition, and reads other partitions only when its home partition is empty.
+	 * Waiting reads of a partitioned queue poll all partitions once per attempt, and wait between attempts for a signal of any partition when {@link QueueOptions#signals} are enabled.
+	 */
+	private int partitions;
+
+	/**
+	 * Strategy choosing a partition for put messages.
+	 */
+	private Partitioner partitioner;
+
+	/**
+	 * Named lanes {@link MessageQueueTemplate} puts messages to and reads them from by weights. No lanes by default.
+	 */
+	private PriorityLanes lanes;
+
+	private QueueOptions() {
+	}
+
+	public boolean isSignals() {
+		return signals;
+	}
+
+	public long getSignalTimeout() {
+		return signalTimeout;
+	}
+
+	public long getSignalCollectionSize() {
+		return signalCollectionSize;
+	}
+
+	public long getReaperInterval() {
+		return reaperInterval;
+	}
+
+	public int getClaimSpread() {
+		return claimSpread;
+	}
+
+	public int getMaxDeliveries() {
+		return maxDeliveries;
+	}
+
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	public long getDelayThreshold() {
+		return delayThreshold;
+	}
+
+	public long getPromoterInterval() {
+		return promoterInterval;
+	}
+
+	public boolean isCounters() {
+		return counters;
+	}
+
+	public List<String> getCounterFields() {
+		return counterFields;
+	}
+
+	public QueueMetrics getMetrics() {
+		return metrics;
+	}
+
+	public MessageCodecs getCodecs() {
+		return codecs;
+	}
+
+	public TypeAliases getTypeAliases() {
+		return typeAliases;
+	}
+
+	public CompressionOptions getCompression() {
+		return compression;
+	}
+
+	public int getPartitions() {
+		return partitions;
+	}
+
+	public Partitioner getPartitioner() {
+		return partitioner;
+	}
+
+	public PriorityLanes getLanes() {
+		return lanes;
+	}
+
+	public QueueOptions withSignals(boolean signals) {
+		this.signals = signals;
+		return this;
+	}
+
+	public QueueOptions withSignalTimeout(long signalTimeout) {
+		this.signalTimeout = signalTimeout;
+		return this;
+	}
+
+	public QueueOptions withSignalCollectionSize(long signalCollectionSize) {
+		this.signalCollectionSize = signalCollectionSize;
+		return this;
+	}
+
+	public QueueOptions withReaperInterval(long reaperInterval) {
+		if (reaperInterval < 0) {
+			throw new IllegalArgumentException("reaper interval must not be negative");
+		}
+
+		this.reaperInterval = reaperInterval;
+		return this;
+	}
+
+	public QueueOptions withClaimSpread(int claimSpread) {
+		if (claimSpread <= 0) {
+			throw new IllegalArgumentException("claim spread must be positive");
+		}
+
+		this.claimSpread = claimSpread;
+		return this;
+	}
+
+	public QueueOptions withMaxDeliveries(int maxDeliveries) {
+		if (maxDeliveries < 0) {
+			throw new IllegalArgumentException("max deliveries must not be negative");
+		}
+
+		this.maxDeliveries = maxDeliveries;
+		return this;
+	}
+
+	public QueueOptions withRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+		return this;
+	}
+
+	public QueueOptions withDelayThreshold(long delayThreshold) {
+		if (delayThreshold < 0) {
+			throw new IllegalArgumentException("delay threshold must not be negative");
+		}
+
+		this.delayThreshold = delayThreshold;
+		return this;
+	}
+
+	public QueueOptions withPromoterInterval(long promoterInterval) {
+		if (promoterInterval <= 0) {
+			throw new IllegalArgumentException("promoter interval must be positive");
+		}
+
+		this.promoterInterval = promoterInterval;
+		return this;
+	}
+
+	public QueueOptions withCounters(String... counterFields) {
+		return withCounters(true, Arrays.asList(counterFields));
+	}
+
+	public QueueOptions withCounters(boolean counters, List<String> counterFields) {
+		this.counters = counters;
+		this.counterFields = Collections.unmodifiableList(new ArrayList<>(counterFields));
+		return this;
+	}
+
+	public QueueOptions withMetrics(QueueMetrics metrics) {
+		this.metrics = metrics;
+		return this;
+	}
+
+	public QueueOptions withCodecs(MessageCodecs codecs) {
+		this.codecs = codecs;
+		return this;
+	}
+
+	public QueueOptions withTypeAliases(TypeAliases typeAliases) {
+		this.typeAliases = typeAliases;
+		return this;
+	}
+
+	public QueueOptions withCompression(CompressionOptions compression) {
+		this.compression = compression;
+		return this;
+	}
+
+	public QueueOptions withPartitions(int partitions) {
+		if (partitions <= 0) {
+			throw new IllegalArgumentException("partitions must be positive");
+		}
+
+		this.partitions = partitions;
+		return this;
+	}
+
+	public QueueOptions withPartitioner(Partitioner partitioner) {
+		this.partitioner = partitioner;
+		return this;
+	}
+
+	public QueueOptions withLanes(PriorityLanes lanes) {
+		this.lanes = lanes;
+		return this;
+	}
+
+}
@@ -0,0 +1,314 @@
+package by.segg3r.mongoqueue;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Push-based wakeup of waiting readers. Senders insert a document into a capped signal collection,
+ * and a single daemon thread per signal collection and JVM tails it, waking up all waiters in {@link #await(long, long)} on every signal.
+ * Waiters may read with different queries, so each of them looks for its message again; waiters whose message is not there wait for the next version.
+ * Readers should take {@link #version()} before looking for a message and wait for a newer version, so no signal is missed.
+ * Signals are shared by all queues upon the same collection, and the tailing thread stops when the last of them {@link #release() releases} it.
+ * Signals of single messages are {@link #coalescedSignal() coalesced}, so a busy producer does not pay a second insert for every message.
+ */
+final class QueueSignals {
+
+	private static final Logger LOG = LoggerFactory.getLogger(QueueSignals.class);
+
+	private static final long RETRY_PERIOD = 1000;
+	private static final long COALESCE_PERIOD = 5; // 5 milliseconds
+	private static final Map<String, QueueSignals> INSTANCES = new HashMap<>();
+
+	private final String fullName;
+	private final DBCollection signals;
+	private final Object lock = new Object();
+	//listeners of readers waiting for any of several signals, see awaitAny
+	private final Set<Runnable> listeners = ConcurrentHashMap.newKeySet();
+	private long version;
+	private int users;
+	private Thread thread;
+	private volatile boolean stopped;
+	private volatile DBCursor cursor;
+	private final AtomicLong lastSignal = new AtomicLong(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(COALESCE_PERIOD));
+	private final AtomicBoolean pendingSignal = new AtomicBoolean();
+	private ScheduledExecutorService flusher;
+
+	/**
+	 * Returns signals for the given queue collection, shared by all queues upon the same collection in this JVM.
+	 * Every call should be followed by {@link #release()}.
+	 */
+	static QueueSignals forCollection(final DBCollection collection, final long collectionSize) {
+		final String fullName = collection.getFullName() + ".signals";
+
+		synchronized (INSTANCES) {
+			QueueSignals signals = INSTANCES.get(fullName);
+			if (signals == null) {
+				signals = new QueueSignals(fullName, createCapped(collection.getDB(), collection.getName() + ".signals", collectionSize));
+				signals.start();
+				INSTANCES.put(fullName, signals);
+			}
+
+			signals.users++;
+			return signals;
+		}
+	}
+
+	private static DBCollection createCapped(final DB db, final String name, final long size) {
+		if (!db.collectionExists(name)) {
+			try {
+				db.createCollection(name, new BasicDBObject("capped", true).append("size", size));
+			} catch (final MongoException ex) {
+				//created concurrently by another node
+			}
+		}
+
+		final DBCollection signals = db.getCollection(name);
+		//tailable cursors die immediately on empty collections
+		if (signals.findOne() == null) {
+			signals.insert(new BasicDBObject("_id", new ObjectId()).append("at", new Date()));
+		}
+
+		return signals;
+	}
+
+	private QueueSignals(final String fullName, final DBCollection signals) {
+		this.fullName = fullName;
+		this.signals = signals;
+	}
+
+	/**
+	 * Releases these signals, stopping the tailing thread if no other queue uses them.
+	 */
+	void release() {
+		synchronized (INSTANCES) {
+			if (--users > 0) {
+				return;
+			}
+
+			INSTANCES.remove(fullName);
+		}
+
+		stopped = true;
+		flusher.shutdownNow();
+		thread.interrupt();
+		final DBCursor current = cursor;
+		if (current != null) {
+			try {
+				current.close();
+			} catch (final RuntimeException ex) {
+				LOG.debug("Could not close tailing cursor of {}", fullName, ex);
+			}
+		}
+	}
+
+	/**
+	 * Notifies waiting readers of all JVMs that new messages are available.
+	 */
+	void signal() {
+		lastSignal.set(System.nanoTime());
+		signals.insert(new BasicDBObject("_id", new ObjectId()).append("at", new Date()));
+	}
+
+	/**
+	 * Notifies waiting readers of all JVMs that a new message is available, unless a signal was sent within the last few milliseconds.
+	 * Then a single signal is sent in background once that period ends, for readers which looked for messages before this one was sent.
+	 */
+	void coalescedSignal() {
+		final long now = System.nanoTime();
+		final long last = lastSignal.get();
+		if (now - last >= TimeUnit.MILLISECONDS.toNanos(COALESCE_PERIOD) && lastSignal.compareAndSet(last, now)) {
+			signals.insert(new BasicDBObject("_id", new ObjectId()).append("at", new Date()));
+			return;
+		}
+
+		if (pendingSignal.compareAndSet(false, true)) {
+			try {
+				flusher.schedule(this::flush, COALESCE_PERIOD, TimeUnit.MILLISECONDS);
+			} catch (final RejectedExecutionException ex) {
+				//released concurrently
+			}
+		}
+	}
+
+	private void flush() {
+		pendingSignal.set(false);
+		try {
+			signal();
+		} catch (final MongoException ex) {
+			LOG.warn("Could not send coalesced signal to {}, waiting readers poll after signal timeout", signals.getFullName(), ex);
+		}
+	}
+
+	/**
+	 * @return number of signals received so far
+	 */
+	long version() {
+		synchronized (lock) {
+			return version;
+		}
+	}
+
+	/**
+	 * Waits until a signal newer than seenVersion is received, or timeout elapses.
+	 *
+	 * @param seenVersion version taken before the last attempt to get a message
+	 * @param timeout maximum time to wait in milliseconds
+	 */
+	void await(final long seenVersion, final long timeout) {
+		final long end = System.currentTimeMillis() + timeout;
+		synchronized (lock) {
+			long remaining = timeout;
+			try {
+				while (version == seenVersion && remaining > 0) {
+					lock.wait(remaining);
+					remaining = end - System.currentTimeMillis();
+				}
+			} catch (final InterruptedException ex) {
+				throw new RuntimeException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Waits until any of given signals receives a signal newer than its seen version, or timeout elapses.
+	 *
+	 * @param signals signals of several queues
+	 * @param seenVersions versions of signals taken before the last attempt to get a message
+	 * @param timeout maximum time to wait in milliseconds
+	 */
+	static void awaitAny(final QueueSignals[] signals, final long[] seenVersions, final long timeout) {
+		final Object waiter = new Object();
+		final Runnable listener = () -> {
+			synchronized (waiter) {
+				waiter.notifyAll();
+			}
+		};
+		addListener(signals, listener);
+
+		final long end = System.currentTimeMillis() + timeout;
+		try {
+			synchronized (waiter) {
+				long remaining = timeout;
+				while (!anyReceived(signals, seenVersions) && remaining > 0) {
+					waiter.wait(remaining);
+					remaining = end - System.currentTimeMillis();
+				}
+			}
+		} catch (final InterruptedException ex) {
+			throw new RuntimeException(ex);
+		} finally {
+			removeListener(signals, listener);
+		}
+	}
+
+	/**
+	 * Registers listener called by every signal of any of given signals, until it is {@link #removeListener(QueueSignals[], Runnable) removed}.
+	 * The listener runs on the tailing thread, so it should only hand work over to another thread.
+	 */
+	static void addListener(final QueueSignals[] signals, final Runnable listener) {
+		for (final QueueSignals signal : signals) {
+			signal.listeners.add(listener);
+		}
+	}
+
+	static void removeListener(final QueueSignals[] signals, final Runnable listener) {
+		for (final QueueSignals signal : signals) {
+			signal.listeners.remove(listener);
+		}
+	}
+
+	/**
+	 * @return whether any of given signals received a signal newer than its seen version.
+	 */
+	static boolean anyReceived(final QueueSignals[] signals, final long[] seenVersions) {
+		for (int i = 0; i < signals.length; ++i) {
+			if (signals[i].version() != seenVersions[i]) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private void start() {
+		thread = new Thread(this::tail, "mongo-queue-signals-" + fullName);
+		thread.setDaemon(true);
+		thread.start();
+
+		flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread flushing = new Thread(runnable, "mongo-queue-signals-flush-" + fullName);
+			flushing.setDaemon(true);
+			return flushing;
+		});
+	}
+
+	private void tail() {
+		while (!stopped) {
+			//natural order of a capped collection is insertion order on every node, unlike ids generated by different clocks
+			try (DBCursor tailing = signals.find()
+					.skip((int) signals.count())
+					.addOption(Bytes.QUERYOPTION_TAILABLE)
+					.addOption(Bytes.QUERYOPTION_AWAITDATA)) {
+				cursor = tailing;
+				boolean positioned = false;
+				//tryNext returns after the await time of the server, so a released instance stops in time
+				while (!stopped) {
+					final DBObject signal = tailing.tryNext();
+					if (!positioned) {
+						//signals sent before the cursor was positioned may be missed, so waiting readers look for messages once more
+						positioned = true;
+						received();
+					}
+					if (signal != null) {
+						received();
+					} else if (tailing.getCursorId() == 0) {
+						break;
+					}
+				}
+			} catch (final MongoException | IllegalStateException ex) {
+				if (!stopped) {
+					LOG.warn("Tailing of {} failed, retrying in {} ms", signals.getFullName(), RETRY_PERIOD, ex);
+				}
+			} finally {
+				cursor = null;
+			}
+
+			try {
+				Thread.sleep(RETRY_PERIOD);
+			} catch (final InterruptedException ex) {
+				return;
+			}
+		}
+	}
+
+	private void received() {
+		synchronized (lock) {
+			version++;
+			lock.notifyAll();
+		}
+
+		for (final Runnable listener : listeners) {
+			listener.run();
+		}
+	}
+
+}
@@ -4,18 +4,20 @@ import org.springframework.data.mongodb.core.query.Query;
 
 /**
  * Class describing timings for {@link MessageQueueTemplate#read(Class, ReadTimings, Query)} methods.
- * It is possible to specify {@link ReadTimings#acknowledgePeriod} and <b>waitDuration</b>.
+ * It is possible to specify {@link ReadTimings#acknowledgePeriod}, <b>waitDuration</b> and {@link ReadTimings#pollStrategy}.
  * Created by Pavel_Dzunovich on 6/16/2017.
  */
 public class ReadTimings {
 
 	private static final int DEFAULT_ACKNOWLEDGE_PERIOD = 60; // 1 minute
 	private static final int DEFAULT_WAIT_DURATION = 5000; // 5 seconds
+	private static final long DEFAULT_POLL_DURATION = 200; // 200 milliseconds
 
 	public static ReadTimings defaultTimings() {
 		return new ReadTimings()
 				.withAcknowledgePeriod(DEFAULT_ACKNOWLEDGE_PERIOD)
-				.withWaitDuration(DEFAULT_WAIT_DURATION);
+				.withWaitDuration(DEFAULT_WAIT_DURATION)
+				.withPollDuration(DEFAULT_POLL_DURATION);
 	}
 
 	public static ReadTimings maxAcknowledgePeriod() {
@@ -38,6 +40,11 @@ public class ReadTimings {
 	 */
 	private int waitDuration;
 
+	/**
+	 * Strategy of delays between poll attempts within <b>waitDuration</b>. See {@link PollStrategy}.
+	 */
+	private PollStrategy pollStrategy;
+
 	private ReadTimings() {
 	}
 
@@ -49,6 +56,10 @@ public class ReadTimings {
 		return waitDuration;
 	}
 
+	public PollStrategy getPollStrategy() {
+		return pollStrategy;
+	}
+
 	public ReadTimings withAcknowledgePeriod(int acknowledgePeriod) {
 		this.acknowledgePeriod = acknowledgePeriod;
 		return this;
@@ -59,4 +70,13 @@ public class ReadTimings {
 		return this;
 	}
 
+	public ReadTimings withPollDuration(long pollDuration) {
+		return withPollStrategy(PollStrategy.fixed(pollDuration));
+	}
+
+	public ReadTimings withPollStrategy(PollStrategy pollStrategy) {
+		this.pollStrategy = pollStrategy;
+		return this;
+	}
+
 }
@@ -0,0 +1,229 @@
+package by.segg3r.mongoqueue;
+
+import com.mongodb.BasicDBObject;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.bson.types.ObjectId;
+import org.springframework.core.DefaultParameterNameDiscoverer;
+import org.springframework.core.ParameterNameDiscoverer;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
+
+/**
+ * {@link MessageCodec} writing and reading fields of a message type with method handles, resolved once per type.
+ * Produces the same documents as Spring converter for types consisting of simple fields only,
+ * and instantiates messages with no-arg constructor or, like Spring, with the only constructor matching fields by parameter names.
+ */
+final class ReflectiveMessageCodec<T extends Message> implements MessageCodec<T> {
+
+	private static final ParameterNameDiscoverer PARAMETER_NAMES = new DefaultParameterNameDiscoverer();
+	private static final Set<Class<?>> SIMPLE_TYPES = new HashSet<>(Arrays.asList(
+			boolean.class, Boolean.class, char.class, Character.class,
+			byte.class, Byte.class, short.class, Short.class, int.class, Integer.class, long.class, Long.class,
+			float.class, Float.class, double.class, Double.class,
+			String.class, Date.class, ObjectId.class, byte[].class));
+
+	private final Property[] properties;
+	private final MethodHandle constructor;
+	private final Property[] constructorProperties;
+	private final Property[] setterProperties;
+
+	ReflectiveMessageCodec(Class<T> clazz) {
+		Map<String, Property> byField = new LinkedHashMap<>();
+		for (Class<?> type = clazz; type != Message.class && type != Object.class; type = type.getSuperclass()) {
+			for (Field field : type.getDeclaredFields()) {
+				int modifiers = field.getModifiers();
+				if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isAnnotationPresent(Transient.class))
+					continue;
+				if (field.isAnnotationPresent(Id.class) || !isSimple(field.getType()))
+					throw new IllegalArgumentException("Field " + field + " is not supported by reflective codec.");
+
+				byField.putIfAbsent(field.getName(), new Property(field));
+			}
+		}
+		this.properties = byField.values().toArray(new Property[0]);
+
+		Constructor<?> persistenceConstructor = persistenceConstructor(clazz);
+		String[] parameterNames = persistenceConstructor.getParameterCount() == 0
+				? new String[0]
+				: PARAMETER_NAMES.getParameterNames(persistenceConstructor);
+		if (parameterNames == null)
+			throw new IllegalArgumentException("Could not resolve parameter names of " + persistenceConstructor + ".");
+
+		List<Property> constructorProperties = new ArrayList<>();
+		for (int i = 0; i < parameterNames.length; i++) {
+			Property property = byField.get(parameterNames[i]);
+			if (property == null || !property.type.equals(persistenceConstructor.getParameterTypes()[i]))
+				throw new IllegalArgumentException("Parameter " + parameterNames[i] + " of " + persistenceConstructor
+						+ " does not match any field.");
+
+			constructorProperties.add(property);
+		}
+
+		List<Property> setterProperties = new ArrayList<>();
+		for (Property property : properties) {
+			if (constructorProperties.contains(property)) continue;
+			if (property.setter == null)
+				throw new IllegalArgumentException("Final field " + property.name + " is not set by " + persistenceConstructor + ".");
+
+			setterProperties.add(property);
+		}
+
+		try {
+			persistenceConstructor.setAccessible(true);
+			this.constructor = MethodHandles.lookup().unreflectConstructor(persistenceConstructor)
+					.asSpreader(Object[].class, parameterNames.length)
+					.asType(MethodType.methodType(Object.class, Object[].class));
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException("Could not access " + persistenceConstructor + ".", e);
+		}
+		this.constructorProperties = constructorProperties.toArray(new Property[0]);
+		this.setterProperties = setterProperties.toArray(new Property[0]);
+	}
+
+	@Override
+	public BasicDBObject encode(T message) {
+		BasicDBObject dbObject = new BasicDBObject();
+		for (Property property : properties) {
+			Object value = property.get(message);
+			if (value != null) {
+				dbObject.put(property.name, encodeValue(value));
+			}
+		}
+
+		return dbObject;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public T decode(BasicDBObject dbObject) {
+		Object[] arguments = new Object[constructorProperties.length];
+		for (int i = 0; i < arguments.length; i++) {
+			Property property = constructorProperties[i];
+			arguments[i] = decodeValue(dbObject.get(property.name), property.type);
+		}
+
+		T message;
+		try {
+			message = (T) (Object) constructor.invokeExact(arguments);
+		} catch (Throwable e) {
+			throw new IllegalStateException("Could not instantiate message.", e);
+		}
+
+		for (Property property : setterProperties) {
+			Object value = dbObject.get(property.name);
+			if (value != null) {
+				property.set(message, decodeValue(value, property.type));
+			}
+		}
+
+		return message;
+	}
+
+	private static boolean isSimple(Class<?> type) {
+		return SIMPLE_TYPES.contains(type) || type.isEnum();
+	}
+
+	private static Constructor<?> persistenceConstructor(Class<?> clazz) {
+		if (Modifier.isAbstract(clazz.getModifiers()) || (clazz.isMemberClass() && !Modifier.isStatic(clazz.getModifiers())))
+			throw new IllegalArgumentException("Could not instantiate " + clazz + ".");
+
+		Constructor<?>[] constructors = clazz.getDeclaredConstructors();
+		for (Constructor<?> constructor : constructors) {
+			if (constructor.getParameterCount() == 0) return constructor;
+		}
+		if (constructors.length != 1)
+			throw new IllegalArgumentException("Could not choose constructor of " + clazz + ".");
+
+		return constructors[0];
+	}
+
+	private static Object encodeValue(Object value) {
+		if (value instanceof Enum) return ((Enum<?>) value).name();
+		if (value instanceof Character) return value.toString();
+
+		return value;
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static Object decodeValue(Object value, Class<?> type) {
+		if (value == null) return type.isPrimitive() ? defaultValue(type) : null;
+
+		if (type.isEnum()) return Enum.valueOf((Class<? extends Enum>) type, value.toString());
+		if (type == char.class || type == Character.class) return value.toString().charAt(0);
+		if (value instanceof Number) {
+			Number number = (Number) value;
+			if (type == byte.class || type == Byte.class) return number.byteValue();
+			if (type == short.class || type == Short.class) return number.shortValue();
+			if (type == int.class || type == Integer.class) return number.intValue();
+			if (type == long.class || type == Long.class) return number.longValue();
+			if (type == float.class || type == Float.class) return number.floatValue();
+			if (type == double.class || type == Double.class) return number.doubleValue();
+		}
+
+		return value;
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (type == boolean.class) return false;
+		if (type == char.class) return '\0';
+
+		return decodeValue(0, type);
+	}
+
+	private static final class Property {
+
+		private final String name;
+		private final Class<?> type;
+		private final MethodHandle getter;
+		private final MethodHandle setter;
+
+		private Property(Field field) {
+			org.springframework.data.mongodb.core.mapping.Field annotation =
+					field.getAnnotation(org.springframework.data.mongodb.core.mapping.Field.class);
+			this.name = annotation != null && !annotation.value().isEmpty() ? annotation.value() : field.getName();
+			this.type = field.getType();
+
+			try {
+				field.setAccessible(true);
+				MethodHandles.Lookup lookup = MethodHandles.lookup();
+				this.getter = lookup.unreflectGetter(field)
+						.asType(MethodType.methodType(Object.class, Object.class));
+				this.setter = Modifier.isFinal(field.getModifiers()) ? null : lookup.unreflectSetter(field)
+						.asType(MethodType.methodType(void.class, Object.class, Object.class));
+			} catch (IllegalAccessException | RuntimeException e) {
+				throw new IllegalArgumentException("Could not access " + field + ".", e);
+			}
+		}
+
+		private Object get(Object message) {
+			try {
+				return (Object) getter.invokeExact(message);
+			} catch (Throwable e) {
+				throw new IllegalStateException("Could not read field " + name + ".", e);
+			}
+		}
+
+		private void set(Object message, Object value) {
+			try {
+				setter.invokeExact(message, value);
+			} catch (Throwable e) {
+				throw new IllegalStateException("Could not write field " + name + ".", e);
+			}
+		}
+
+	}
+
+}
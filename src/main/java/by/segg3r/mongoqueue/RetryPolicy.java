@@ -0,0 +1,56 @@
+package by.segg3r.mongoqueue;
+
+/**
+ * Policy of delays before a requeued message is given to readers again, depending on how many times it was delivered.
+ * Used by {@link MessageQueue#requeue(com.mongodb.BasicDBObject)} with {@link QueueOptions#getRetryPolicy()}
+ * and by {@link MessageListenerContainer} with {@link ConsumerOptions#getRetryPolicy()}.
+ */
+@FunctionalInterface
+public interface RetryPolicy {
+
+	/**
+	 * @return policy giving requeued messages back immediately.
+	 */
+	static RetryPolicy immediate() {
+		return fixed(0);
+	}
+
+	/**
+	 * @param delay delay in milliseconds
+	 * @return policy delaying all retries by the same delay.
+	 */
+	static RetryPolicy fixed(long delay) {
+		if (delay < 0) {
+			throw new IllegalArgumentException("delay must not be negative");
+		}
+
+		return deliveries -> delay;
+	}
+
+	/**
+	 * @param initial delay in milliseconds after the first delivery
+	 * @param max maximum delay in milliseconds
+	 * @return policy doubling the delay with every delivery, starting at <b>initial</b> and capped by <b>max</b>.
+	 */
+	static RetryPolicy exponential(long initial, long max) {
+		if (initial <= 0 || max < initial) {
+			throw new IllegalArgumentException("delays should satisfy 0 < initial <= max");
+		}
+
+		return deliveries -> {
+			long delay = initial;
+			for (int i = 1; i < deliveries && delay < max; i++) {
+				delay *= 2;
+			}
+
+			return Math.min(delay, max);
+		};
+	}
+
+	/**
+	 * @param deliveries number of times the message was delivered, including the failed delivery
+	 * @return delay in milliseconds before the message is given to readers again
+	 */
+	long delay(int deliveries);
+
+}
@@ -0,0 +1,87 @@
+package by.segg3r.mongoqueue;
+
+import org.reactivestreams.Publisher;
+import org.springframework.data.mongodb.core.query.Query;
+
+/**
+ * Class describing options for {@link MessageQueueTemplate#stream(Class, Query, StreamOptions)}.
+ * It is possible to specify read {@link StreamOptions#timings}, maximum {@link StreamOptions#batchSize} of a single claim
+ * and whether messages are acknowledged automatically, which is off by default.
+ * @see Publisher
+ */
+public class StreamOptions {
+
+	private static final int DEFAULT_BATCH_SIZE = 100;
+
+	public static StreamOptions defaultOptions() {
+		return new StreamOptions()
+				.withTimings(ReadTimings.defaultTimings())
+				.withBatchSize(DEFAULT_BATCH_SIZE)
+				.withAutoAcknowledge(false);
+	}
+
+	public static StreamOptions manualAcknowledge() {
+		return defaultOptions();
+	}
+
+	public static StreamOptions autoAcknowledge() {
+		return defaultOptions()
+				.withAutoAcknowledge(true);
+	}
+
+	/**
+	 * Timings of claims. Acknowledge period is the lease of emitted messages, poll strategy defines delays
+	 * between claims while there is demand, but no messages. Wait duration is not used, the stream waits as long as there is demand.
+	 * Every subscription uses its own {@link PollStrategy#adaptive(long, long)} strategy, other strategies are shared by all subscriptions,
+	 * so custom ones should not keep state of their reads.
+	 */
+	private ReadTimings timings;
+
+	/**
+	 * Maximum number of messages claimed at once, even if the subscriber requested more.
+	 */
+	private int batchSize;
+
+	/**
+	 * Whether a message is acknowledged as soon as {@link org.reactivestreams.Subscriber#onNext(Object)} returns.
+	 * This is at-most-once delivery: a subscriber handing messages off to process them asynchronously loses them if it fails afterwards.
+	 * Otherwise the subscriber should acknowledge it with {@link MessageQueueTemplate#acknowledge(Message)} once it is processed,
+	 * and a message not acknowledged within the acknowledge period of {@link StreamOptions#timings} is given again.
+	 */
+	private boolean autoAcknowledge;
+
+	private StreamOptions() {
+	}
+
+	public ReadTimings getTimings() {
+		return timings;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	public boolean isAutoAcknowledge() {
+		return autoAcknowledge;
+	}
+
+	public StreamOptions withTimings(ReadTimings timings) {
+		this.timings = timings;
+		return this;
+	}
+
+	public StreamOptions withBatchSize(int batchSize) {
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("batch size must be positive");
+		}
+
+		this.batchSize = batchSize;
+		return this;
+	}
+
+	public StreamOptions withAutoAcknowledge(boolean autoAcknowledge) {
+		this.autoAcknowledge = autoAcknowledge;
+		return this;
+	}
+
+}
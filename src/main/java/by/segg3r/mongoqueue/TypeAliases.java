@@ -0,0 +1,88 @@
+package by.segg3r.mongoqueue;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import org.springframework.data.annotation.TypeAlias;
+
+/**
+ * Registry of short aliases {@link MessageQueueTemplate} stores in <b>_class</b> field instead of full class names.
+ * Types without an alias are stored with full class names, and full class names are always resolved on read,
+ * so aliases may be introduced for queues which already contain messages.
+ * Readers should register the same aliases as writers.
+ */
+public class TypeAliases {
+
+	public static TypeAliases create() {
+		return new TypeAliases();
+	}
+
+	private final Map<Class<?>, String> aliases = new ConcurrentHashMap<>();
+	private final Map<String, Optional<Class<?>>> types = new ConcurrentHashMap<>();
+
+	private TypeAliases() {
+	}
+
+	/**
+	 * Registers alias of given message type.
+	 * @param clazz message type. Should not be null.
+	 * @param alias alias. Should not be null and should not be registered for another type.
+	 * @return this registry.
+	 */
+	public TypeAliases register(Class<? extends Message> clazz, String alias) {
+		Objects.requireNonNull(clazz);
+		Objects.requireNonNull(alias);
+
+		//an empty entry is an alias read before it was registered, which could not be loaded as a class name
+		Optional<Class<?>> registered = types.compute(alias, (name, existing) -> existing != null && existing.isPresent() ? existing : Optional.of(clazz));
+		if (!registered.equals(Optional.of(clazz)))
+			throw new IllegalArgumentException("Alias " + alias + " is already registered for " + registered.get() + ".");
+
+		aliases.put(clazz, alias);
+		return this;
+	}
+
+	/**
+	 * Registers alias of given message type, declared with Spring {@link TypeAlias} annotation.
+	 * @param clazz message type annotated with {@link TypeAlias}. Should not be null.
+	 * @return this registry.
+	 */
+	public TypeAliases register(Class<? extends Message> clazz) {
+		TypeAlias typeAlias = clazz.getAnnotation(TypeAlias.class);
+		if (typeAlias == null)
+			throw new IllegalArgumentException(clazz + " is not annotated with @TypeAlias.");
+
+		return register(clazz, typeAlias.value());
+	}
+
+	/**
+	 * @return alias of given type, or its full name, if it has no alias.
+	 */
+	String alias(Class<?> clazz) {
+		String alias = aliases.get(clazz);
+		return alias != null ? alias : clazz.getName();
+	}
+
+	/**
+	 * Resolves actual type of a stored message by its <b>_class</b> value, like Spring converter does.
+	 * @param clazz requested type.
+	 * @param alias stored alias or full class name.
+	 * @return stored type, if it is known and is a subtype of requested one. Requested type otherwise.
+	 */
+	@SuppressWarnings("unchecked")
+	<T> Class<? extends T> resolve(Class<T> clazz, Object alias) {
+		if (!(alias instanceof String)) return clazz;
+
+		Optional<Class<?>> type = types.computeIfAbsent((String) alias, name -> {
+			try {
+				return Optional.of(Class.forName(name, false, clazz.getClassLoader()));
+			} catch (ClassNotFoundException | LinkageError e) {
+				return Optional.empty();
+			}
+		});
+
+		return (Class<? extends T>) type.filter(clazz::isAssignableFrom).orElse(clazz);
+	}
+
+}
@@ -2,18 +2,33 @@ package by.segg3r.mongoqueue;
 
 import by.segg3r.testng.util.mongo.MongoStartupListener;
 import by.segg3r.testng.util.spring.SpringContextListener;
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.data.mongodb.MongoDbFactory;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Listeners;
 import org.testng.annotations.Test;
 
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static by.segg3r.expectunit.Expect.expect;
 import static by.segg3r.mongoqueue.MessageIndex.byMessageId;
@@ -23,6 +38,7 @@ import static java.lang.Boolean.TRUE;
 import static java.lang.Integer.parseInt;
 import static java.lang.Thread.currentThread;
 import static java.lang.Thread.sleep;
+import static java.util.Collections.singletonList;
 import static org.springframework.data.mongodb.core.query.Criteria.where;
 import static org.springframework.data.mongodb.core.query.Query.query;
 
@@ -72,6 +88,763 @@ public class MessageQueueTemplateTest {
 		expect(template.count(query(where("value").is("dzunovich2")))).toBe(1L);
 	}
 
+	@Test(description = "should put messages in batch split by chunks")
+	public void testPutAll() {
+		List<SimpleMessage> messages = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			messages.add(new SimpleMessage("batch", String.valueOf(i)));
+		}
+
+		BatchResult result = template.putAll(messages, BatchOptions.ordered().withChunkSize(2));
+		expect(result.isSuccessful()).toBe(true);
+		expect(result.getInsertedCount()).toBe(5);
+		expect(result.getIds().size()).toBe(5);
+		expect(template.count(query(where("key").is("batch")))).toBe(5L);
+	}
+
+	@Test(description = "should read batch of messages with a single lease")
+	public void testReadBatch() {
+		for (int i = 0; i < 5; i++) {
+			template.put(new SimpleMessage("batch", String.valueOf(i)));
+		}
+
+		List<SimpleMessage> firstBatch = template.readBatch(SimpleMessage.class, 3, maxAcknowledgePeriod());
+		expect(firstBatch.size()).toBe(3);
+		expect(firstBatch.get(0).getLease()).not().toBeNull();
+		expect(firstBatch.get(0).getLease()).toEqual(firstBatch.get(2).getLease());
+
+		List<SimpleMessage> secondBatch = template.readBatch(SimpleMessage.class, 3, maxAcknowledgePeriod());
+		expect(secondBatch.size()).toBe(2);
+		expect(secondBatch.get(0).getLease()).not().toEqual(firstBatch.get(0).getLease());
+		expect(template.readBatch(SimpleMessage.class, 3, ReadTimings.waitingFor(0)).isEmpty()).toBe(true);
+	}
+
+	@Test(description = "should acknowledge batch of messages at once")
+	public void testAcknowledgeAll() {
+		for (int i = 0; i < 5; i++) {
+			template.put(new SimpleMessage("batch", String.valueOf(i)));
+		}
+
+		List<SimpleMessage> messages = template.readBatch(SimpleMessage.class, 5, maxAcknowledgePeriod());
+		expect(template.acknowledgeAll(messages, BatchOptions.defaultOptions().withChunkSize(2))).toBe(5L);
+		expect(template.count()).toBe(0L);
+		expect(template.acknowledgeAll(messages)).toBe(0L);
+	}
+
+	@Test(description = "should wake up waiting reader by signal")
+	public void testSignalWakeup() throws Exception {
+		Map<Integer, SimpleMessage> result = new ConcurrentHashMap<>();
+		long start;
+		try (MessageQueueTemplate signalTemplate = new MessageQueueTemplate(mongoTemplate, "signalQueue",
+				QueueOptions.withSignalsEnabled().withSignalTimeout(10000))) {
+			Thread reader = new Thread(() -> {
+				SimpleMessage message = signalTemplate.read(SimpleMessage.class, ReadTimings.waitingFor(10000));
+				if (message != null) result.put(0, message);
+			});
+			reader.start();
+			sleep(500);
+
+			start = System.currentTimeMillis();
+			signalTemplate.put(new SimpleMessage("pavel", "dzunovich"));
+			reader.join();
+		}
+
+		expect(result.get(0)).not().toBeNull();
+		expect(System.currentTimeMillis() - start < 1000).toBe(true);
+
+		sleep(500);
+		expect(Thread.getAllStackTraces().keySet().stream()
+				.anyMatch(thread -> thread.getName().startsWith("mongo-queue-signals-"))).toBe(false);
+	}
+
+	@Test(description = "should wake up waiting reader whose filter matches signalled message")
+	public void testSignalWakeupFilteredReaders() throws Exception {
+		Map<String, Long> readAt = new ConcurrentHashMap<>();
+		long start;
+		try (MessageQueueTemplate signalTemplate = new MessageQueueTemplate(mongoTemplate, "filteredSignalQueue",
+				QueueOptions.withSignalsEnabled().withSignalTimeout(10000))) {
+			List<Thread> readers = new ArrayList<>();
+			for (String key : Arrays.asList("first", "second")) {
+				Thread reader = new Thread(() -> {
+					if (signalTemplate.read(SimpleMessage.class, ReadTimings.waitingFor(10000), query(where("key").is(key))) != null) {
+						readAt.put(key, System.currentTimeMillis());
+					}
+				});
+				reader.start();
+				readers.add(reader);
+			}
+			sleep(500);
+
+			start = System.currentTimeMillis();
+			signalTemplate.put(new SimpleMessage("second", "dzunovich"));
+			readers.get(1).join();
+			signalTemplate.put(new SimpleMessage("first", "dzunovich"));
+			readers.get(0).join();
+		}
+
+		expect(readAt.get("second") - start < 1000).toBe(true);
+		expect(readAt.get("first") - start < 2000).toBe(true);
+	}
+
+	@Test(description = "should wake up waiting readers by coalesced signals of messages put at once")
+	public void testCoalescedSignalWakeup() throws Exception {
+		List<SimpleMessage> result = new CopyOnWriteArrayList<>();
+		long start;
+		try (MessageQueueTemplate signalTemplate = new MessageQueueTemplate(mongoTemplate, "coalescedSignalQueue",
+				QueueOptions.withSignalsEnabled().withSignalTimeout(10000))) {
+			List<Thread> readers = new ArrayList<>();
+			for (int i = 0; i < 2; i++) {
+				Thread reader = new Thread(() -> {
+					SimpleMessage message = signalTemplate.read(SimpleMessage.class, ReadTimings.waitingFor(10000));
+					if (message != null) result.add(message);
+				});
+				reader.start();
+				readers.add(reader);
+			}
+			sleep(500);
+
+			start = System.currentTimeMillis();
+			signalTemplate.put(new SimpleMessage("pavel", "dzunovich"));
+			signalTemplate.put(new SimpleMessage("pavel", "dzunovich2"));
+			for (Thread reader : readers) {
+				reader.join();
+			}
+		}
+
+		expect(result.size()).toBe(2);
+		expect(System.currentTimeMillis() - start < 1000).toBe(true);
+	}
+
+	@Test(description = "should wake up waiting read of partitioned queue by signal of any partition")
+	public void testPartitionSignalWakeup() throws Exception {
+		Map<Integer, SimpleMessage> result = new ConcurrentHashMap<>();
+		long start;
+		try (MessageQueueTemplate signalTemplate = new MessageQueueTemplate(mongoTemplate, "partitionedSignalQueue",
+				QueueOptions.withSignalsEnabled().withSignalTimeout(10000).withPartitions(3))) {
+			Thread reader = new Thread(() -> {
+				SimpleMessage message = signalTemplate.read(SimpleMessage.class, ReadTimings.waitingFor(10000));
+				if (message != null) result.put(0, message);
+			});
+			reader.start();
+			sleep(500);
+
+			start = System.currentTimeMillis();
+			signalTemplate.put(new SimpleMessage("pavel", "dzunovich"));
+			reader.join();
+		}
+
+		expect(result.get(0)).not().toBeNull();
+		expect(System.currentTimeMillis() - start < 1000).toBe(true);
+	}
+
+	@Test(description = "should reset abandoned message by reaper")
+	public void testReaper() throws Exception {
+		try (MessageQueueTemplate reaperTemplate = new MessageQueueTemplate(mongoTemplate, "reaperQueue",
+				QueueOptions.withReaperEnabled().withReaperInterval(200))) {
+			reaperTemplate.put(new SimpleMessage("pavel", "dzunovich"));
+
+			expect(reaperTemplate.read(SimpleMessage.class, defaultTimings().withAcknowledgePeriod(1))).not().toBeNull();
+			sleep(1500);
+			expect(reaperTemplate.getRecoveredLeases()).toBe(1L);
+			expect(reaperTemplate.read(SimpleMessage.class, ReadTimings.waitingFor(0))).not().toBeNull();
+		}
+	}
+
+	@Test(description = "should consume messages with subscribed handler")
+	public void testSubscribe() throws Exception {
+		Map<Integer, Boolean> result = new ConcurrentHashMap<>();
+		for (int i = 0; i < 20; i++) {
+			template.put(new SimpleMessage("subscribe", String.valueOf(i)));
+		}
+
+		try (MessageListenerContainer<SimpleMessage> container = template.subscribe(SimpleMessage.class,
+				message -> result.put(parseInt(message.getValue()), true),
+				ConsumerOptions.withConcurrencyOf(4).withTimings(defaultTimings().withWaitDuration(100)))) {
+			for (int i = 0; i < 100 && container.getHandled() < 20; i++) {
+				sleep(100);
+			}
+		}
+
+		expect(result.size()).toBe(20);
+		expect(template.count()).toBe(0L);
+	}
+
+	@Test(description = "should requeue message failed by subscribed handler")
+	public void testSubscribeRequeue() throws Exception {
+		Map<Integer, Boolean> failedOnce = new ConcurrentHashMap<>();
+		template.put(new SimpleMessage("subscribe", "0"));
+
+		try (MessageListenerContainer<SimpleMessage> container = template.subscribe(SimpleMessage.class,
+				message -> {
+					if (failedOnce.put(0, true) == null) throw new IllegalStateException("first attempt fails");
+				},
+				ConsumerOptions.defaultOptions().withRequeueDelay(0).withTimings(defaultTimings().withWaitDuration(100)))) {
+			for (int i = 0; i < 100 && container.getHandled() < 1; i++) {
+				sleep(100);
+			}
+
+			expect(container.getFailed()).toBe(1L);
+			expect(container.getHandled()).toBe(1L);
+		}
+	}
+
+	@Test(description = "should prefetch messages and renew their leases")
+	public void testPrefetch() throws Exception {
+		for (int i = 0; i < 3; i++) {
+			template.put(new SimpleMessage("prefetch", String.valueOf(i)));
+		}
+
+		try (PrefetchingReader<SimpleMessage> reader = template.prefetch(SimpleMessage.class,
+				PrefetchOptions.buffering(3).withBatchSize(2).withTimings(defaultTimings().withAcknowledgePeriod(1)).withRenewInterval(200))) {
+			SimpleMessage message = reader.poll(5, TimeUnit.SECONDS);
+			expect(message).not().toBeNull();
+
+			sleep(1500);
+			expect(template.read(SimpleMessage.class, ReadTimings.waitingFor(0))).toBeNull();
+
+			reader.acknowledge(message);
+		}
+
+		expect(template.count()).toBe(2L);
+		expect(template.readBatch(SimpleMessage.class, 3, ReadTimings.waitingFor(0)).size()).toBe(2);
+	}
+
+	@Test(description = "should not wait for messages of closed prefetching reader", expectedExceptions = IllegalStateException.class)
+	public void testPrefetchTakeAfterClose() throws Exception {
+		PrefetchingReader<SimpleMessage> reader = template.prefetch(SimpleMessage.class, PrefetchOptions.buffering(1));
+		reader.close();
+
+		reader.take();
+	}
+
+	@Test(description = "should not count deliveries of prefetched messages released on close")
+	public void testPrefetchReleaseKeepsDeliveries() throws Exception {
+		MessageQueueTemplate releaseTemplate = new MessageQueueTemplate(mongoTemplate, "releaseQueue");
+		releaseTemplate.put(new SimpleMessage("prefetch", "released"));
+
+		try (PrefetchingReader<SimpleMessage> reader = releaseTemplate.prefetch(SimpleMessage.class, PrefetchOptions.buffering(1))) {
+			while (reader.getBuffered() == 0) {
+				sleep(50);
+			}
+		}
+
+		SimpleMessage message = releaseTemplate.read(SimpleMessage.class, maxAcknowledgePeriod());
+		expect(message.getValue()).toEqual("released");
+		expect(message.getDeliveries()).toBe(1);
+	}
+
+	@Test(description = "should extend lease of read message only while it is owned")
+	public void testExtendLease() throws Exception {
+		template.put(new SimpleMessage("pavel", "dzunovich"));
+
+		SimpleMessage message = template.read(SimpleMessage.class, defaultTimings().withAcknowledgePeriod(1));
+		expect(template.extendLease(message, Duration.ofSeconds(60))).toBe(true);
+		sleep(1500);
+		expect(template.read(SimpleMessage.class, ReadTimings.waitingFor(0))).toBeNull();
+
+		template.release(singletonList(message));
+		expect(template.extendLease(message, Duration.ofSeconds(60))).toBe(false);
+		expect(template.read(SimpleMessage.class, ReadTimings.waitingFor(0))).not().toBeNull();
+	}
+
+	@Test(description = "should keep lease of tracked message with heartbeat")
+	public void testHeartbeat() throws Exception {
+		template.put(new SimpleMessage("pavel", "dzunovich"));
+
+		try (LeaseHeartbeat heartbeat = template.heartbeat(Duration.ofSeconds(1), Duration.ofMillis(200))) {
+			SimpleMessage message = template.read(SimpleMessage.class, defaultTimings().withAcknowledgePeriod(1));
+			heartbeat.track(message);
+			sleep(1500);
+			expect(template.read(SimpleMessage.class, ReadTimings.waitingFor(0))).toBeNull();
+		}
+	}
+
+	@Test(description = "should stop tracking message acknowledged elsewhere")
+	public void testHeartbeatDropsLostLease() throws Exception {
+		template.put(new SimpleMessage("pavel", "dzunovich"));
+
+		try (LeaseHeartbeat heartbeat = template.heartbeat(Duration.ofSeconds(1), Duration.ofMillis(200))) {
+			SimpleMessage message = template.read(SimpleMessage.class, defaultTimings().withAcknowledgePeriod(1));
+			heartbeat.track(message);
+			template.acknowledge(message);
+			sleep(500);
+			expect(heartbeat.getTracked()).toBe(0);
+		}
+	}
+
+	@Test(description = "should read message asynchronously once it is put")
+	public void testReadAsync() throws Exception {
+		ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+		try {
+			AsyncMessageQueueTemplate asyncTemplate = template.async(executor);
+
+			CompletableFuture<SimpleMessage> future = asyncTemplate.readAsync(SimpleMessage.class, ReadTimings.waitingFor(5000).withPollDuration(50));
+			expect(future.isDone()).toBe(false);
+
+			asyncTemplate.putAsync(new SimpleMessage("pavel", "dzunovich")).get();
+			SimpleMessage message = future.get(5, TimeUnit.SECONDS);
+			expect(message.getValue()).toEqual("dzunovich");
+
+			asyncTemplate.acknowledgeAsync(message).get();
+			expect(asyncTemplate.countAsync().get()).toBe(0L);
+			expect(asyncTemplate.readAsync(SimpleMessage.class, ReadTimings.waitingFor(100)).get()).toBeNull();
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test(description = "should wake up asynchronous read by signal")
+	public void testReadAsyncSignalWakeup() throws Exception {
+		ScheduledExecutorService executor = Executors.newScheduledThreadPool(2);
+		try (MessageQueueTemplate signalTemplate = new MessageQueueTemplate(mongoTemplate, "asyncSignalQueue",
+				QueueOptions.withSignalsEnabled().withSignalTimeout(10000))) {
+			AsyncMessageQueueTemplate asyncTemplate = signalTemplate.async(executor);
+
+			CompletableFuture<SimpleMessage> future = asyncTemplate.readAsync(SimpleMessage.class, ReadTimings.waitingFor(10000).withPollDuration(10000));
+			sleep(500);
+
+			long start = System.currentTimeMillis();
+			signalTemplate.put(new SimpleMessage("pavel", "dzunovich"));
+			expect(future.get(5, TimeUnit.SECONDS).getValue()).toEqual("dzunovich");
+			expect(System.currentTimeMillis() - start < 1000).toBe(true);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test(description = "should stream messages by subscriber demand")
+	public void testStream() throws Exception {
+		for (int i = 0; i < 5; i++) {
+			template.put(new SimpleMessage("stream", String.valueOf(i)));
+		}
+
+		List<SimpleMessage> received = new CopyOnWriteArrayList<>();
+		Map<Integer, Subscription> subscriptions = new ConcurrentHashMap<>();
+		template.stream(SimpleMessage.class, query(where("key").is("stream")), StreamOptions.autoAcknowledge())
+				.subscribe(new Subscriber<SimpleMessage>() {
+					@Override
+					public void onSubscribe(Subscription subscription) {
+						subscriptions.put(0, subscription);
+						subscription.request(3);
+					}
+
+					@Override
+					public void onNext(SimpleMessage message) {
+						received.add(message);
+					}
+
+					@Override
+					public void onError(Throwable throwable) {
+					}
+
+					@Override
+					public void onComplete() {
+					}
+				});
+
+		for (int i = 0; i < 50 && received.size() < 3; i++) {
+			sleep(100);
+		}
+		sleep(200);
+
+		expect(received.size()).toBe(3);
+		expect(template.count()).toBe(2L);
+		subscriptions.get(0).cancel();
+	}
+
+	@Test(description = "should keep streamed messages until subscriber acknowledges them")
+	public void testStreamManualAcknowledge() throws Exception {
+		template.put(new SimpleMessage("stream", "dzunovich"));
+
+		List<SimpleMessage> received = new CopyOnWriteArrayList<>();
+		Map<Integer, Subscription> subscriptions = new ConcurrentHashMap<>();
+		template.stream(SimpleMessage.class, query(where("key").is("stream")), StreamOptions.defaultOptions())
+				.subscribe(new Subscriber<SimpleMessage>() {
+					@Override
+					public void onSubscribe(Subscription subscription) {
+						subscriptions.put(0, subscription);
+						subscription.request(1);
+					}
+
+					@Override
+					public void onNext(SimpleMessage message) {
+						received.add(message);
+					}
+
+					@Override
+					public void onError(Throwable throwable) {
+					}
+
+					@Override
+					public void onComplete() {
+					}
+				});
+
+		for (int i = 0; i < 50 && received.isEmpty(); i++) {
+			sleep(100);
+		}
+
+		expect(received.size()).toBe(1);
+		expect(template.count()).toBe(1L);
+		template.acknowledge(received.get(0));
+		expect(template.count()).toBe(0L);
+		subscriptions.get(0).cancel();
+	}
+
+	@Test(description = "should record metrics of queue operations")
+	public void testMetrics() {
+		Map<String, Integer> recorded = new ConcurrentHashMap<>();
+		QueueMetrics metrics = new QueueMetrics() {
+			@Override
+			public void recordSend(int messages, long nanos) {
+				recorded.merge("send", messages, Integer::sum);
+			}
+
+			@Override
+			public void recordGet(int messages, int attempts, int emptyPolls, long sleptNanos, long nanos) {
+				recorded.merge("get", messages, Integer::sum);
+				recorded.merge("emptyPolls", emptyPolls, Integer::sum);
+			}
+
+			@Override
+			public void recordAck(int messages, long nanos) {
+				recorded.merge("ack", messages, Integer::sum);
+			}
+		};
+		MessageQueueTemplate metricsTemplate = new MessageQueueTemplate(mongoTemplate, "metricsQueue", QueueOptions.defaultOptions().withMetrics(metrics));
+
+		metricsTemplate.put(new SimpleMessage("pavel", "dzunovich"));
+		expect(metricsTemplate.read(SimpleMessage.class)).not().toBeNull();
+		expect(metricsTemplate.read(SimpleMessage.class, ReadTimings.waitingFor(0))).toBeNull();
+
+		expect(recorded.get("send")).toBe(1);
+		expect(recorded.get("get")).toBe(1);
+		expect(recorded.get("emptyPolls")).toBe(1);
+		expect(recorded.get("ack")).toBe(1);
+	}
+
+	@Test(description = "should convert messages with codecs compatible with Spring converter")
+	public void testCodecs() {
+		MessageCodec<SimpleMessage> codec = new MessageCodec<SimpleMessage>() {
+			@Override
+			public BasicDBObject encode(SimpleMessage message) {
+				return new BasicDBObject("key", message.getKey()).append("value", message.getValue());
+			}
+
+			@Override
+			public SimpleMessage decode(BasicDBObject dbObject) {
+				return new SimpleMessage(dbObject.getString("key"), dbObject.getString("value"));
+			}
+		};
+		MessageQueueTemplate codecTemplate = new MessageQueueTemplate(mongoTemplate, "codecQueue",
+				QueueOptions.defaultOptions().withCodecs(MessageCodecs.reflective().register(SimpleMessage.class, codec)));
+		MessageQueueTemplate converterTemplate = new MessageQueueTemplate(mongoTemplate, "codecQueue");
+
+		codecTemplate.put(new SimpleMessage("pavel", "dzunovich"));
+		SimpleMessage simpleMessage = converterTemplate.read(SimpleMessage.class);
+		expect(simpleMessage.getKey()).toEqual("pavel");
+		expect(simpleMessage.getValue()).toEqual("dzunovich");
+
+		ChildMessage childMessage = new ChildMessage();
+		childMessage.setValue(10);
+		converterTemplate.put(childMessage);
+		BaseMessage baseMessage = codecTemplate.read(BaseMessage.class);
+		expect(((ChildMessage) baseMessage).getValue()).toBe(10);
+		expect(baseMessage.getId()).not().toBeNull();
+	}
+
+	@Test(description = "should store type alias and read both aliases and full class names")
+	public void testTypeAliases() {
+		MessageQueueTemplate aliasTemplate = new MessageQueueTemplate(mongoTemplate, "aliasQueue",
+				QueueOptions.defaultOptions().withTypeAliases(TypeAliases.create().register(ChildMessage.class, "child")));
+		MessageQueueTemplate classNameTemplate = new MessageQueueTemplate(mongoTemplate, "aliasQueue");
+
+		ChildMessage childMessage = new ChildMessage();
+		childMessage.setValue(10);
+		aliasTemplate.put(childMessage);
+		expect(((BasicDBObject) mongoTemplate.getCollection("aliasQueue").findOne().get("payload")).get("_class")).toEqual("child");
+		expect(((ChildMessage) aliasTemplate.read(BaseMessage.class)).getValue()).toBe(10);
+
+		childMessage.setValue(20);
+		classNameTemplate.put(childMessage);
+		expect(((ChildMessage) aliasTemplate.read(BaseMessage.class)).getValue()).toBe(20);
+	}
+
+	@Test(description = "should compress large payloads keeping query fields uncompressed")
+	public void testCompression() {
+		MessageQueueTemplate compressionTemplate = new MessageQueueTemplate(mongoTemplate, "compressionQueue",
+				QueueOptions.defaultOptions().withCompression(CompressionOptions.deflate().withThreshold(100).withUncompressedFields("key")));
+		StringBuilder largeValue = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			largeValue.append("dzunovich");
+		}
+
+		compressionTemplate.put(new SimpleMessage("large", largeValue.toString()));
+		compressionTemplate.put(new SimpleMessage("small", "dzunovich"));
+
+		BasicDBObject largePayload = (BasicDBObject) mongoTemplate.getCollection("compressionQueue")
+				.findOne(new BasicDBObject("payload.key", "large")).get("payload");
+		expect(largePayload.containsField("value")).toBe(false);
+		BasicDBObject smallPayload = (BasicDBObject) mongoTemplate.getCollection("compressionQueue")
+				.findOne(new BasicDBObject("payload.key", "small")).get("payload");
+		expect(smallPayload.get("value")).toEqual("dzunovich");
+
+		SimpleMessage largeMessage = compressionTemplate.read(SimpleMessage.class, query(where("key").is("large")));
+		expect(largeMessage.getValue()).toEqual(largeValue.toString());
+		expect(compressionTemplate.read(SimpleMessage.class).getValue()).toEqual("dzunovich");
+	}
+
+	@Test(description = "should reject queries on compressed fields", expectedExceptions = IllegalArgumentException.class)
+	public void testCompressionRejectsCompressedQueryFields() {
+		MessageQueueTemplate compressionTemplate = new MessageQueueTemplate(mongoTemplate, "compressionQueryQueue",
+				QueueOptions.defaultOptions().withCompression(CompressionOptions.deflate().withUncompressedFields("key")));
+
+		compressionTemplate.count(query(where("value").is("dzunovich")));
+	}
+
+	@Test(description = "should keep declared fields uncompressed regardless of which template indexes them")
+	public void testCompressionLayoutIndependentOfIndexes() {
+		QueueOptions options = QueueOptions.defaultOptions()
+				.withCompression(CompressionOptions.deflate().withThreshold(100).withUncompressedFields("key"));
+		MessageQueueTemplate producer = new MessageQueueTemplate(mongoTemplate, "compressionLayoutQueue", options);
+		StringBuilder largeValue = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			largeValue.append("dzunovich");
+		}
+		producer.put(new SimpleMessage("large", largeValue.toString()));
+
+		MessageQueueTemplate consumer = new MessageQueueTemplate(mongoTemplate, "compressionLayoutQueue", options);
+		consumer.ensureIndex(MessageIndex.byFields(MessageIndex.Entry.field("key")));
+		expect(consumer.count(query(where("key").is("large")))).toBe(1L);
+		expect(consumer.read(SimpleMessage.class, query(where("key").is("large"))).getValue()).toEqual(largeValue.toString());
+	}
+
+	@Test(description = "should spread messages across partitions and read them from every partition")
+	public void testPartitions() {
+		MessageQueueTemplate partitionedTemplate = new MessageQueueTemplate(mongoTemplate, "partitionedQueue",
+				QueueOptions.defaultOptions().withPartitions(3));
+		for (int i = 0; i < 6; i++) {
+			partitionedTemplate.put(new SimpleMessage("partitioned", String.valueOf(i)));
+		}
+
+		expect(partitionedTemplate.count()).toBe(6L);
+		expect(mongoTemplate.getCollection("partitionedQueue").count()).toBe(2L);
+		expect(mongoTemplate.getCollection("partitionedQueue.1").count()).toBe(2L);
+		expect(mongoTemplate.getCollection("partitionedQueue.2").count()).toBe(2L);
+
+		List<SimpleMessage> messages = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			messages.add(partitionedTemplate.read(SimpleMessage.class, maxAcknowledgePeriod()));
+		}
+		messages.addAll(partitionedTemplate.readBatch(SimpleMessage.class, 5, maxAcknowledgePeriod()));
+		expect(messages.size()).toBe(6);
+		expect(partitionedTemplate.read(SimpleMessage.class, ReadTimings.waitingFor(0))).toBeNull();
+
+		expect(partitionedTemplate.acknowledgeAll(messages)).toBe(6L);
+		expect(partitionedTemplate.count()).toBe(0L);
+	}
+
+	@Test(description = "should requeue and acknowledge message of partitioned queue not read by the template")
+	public void testPartitionsUnknownMessage() {
+		MessageQueueTemplate partitionedTemplate = new MessageQueueTemplate(mongoTemplate, "unknownPartitionQueue",
+				QueueOptions.defaultOptions().withPartitions(3));
+		partitionedTemplate.put(new SimpleMessage("partitioned", "dzunovich"));
+		SimpleMessage read = partitionedTemplate.read(SimpleMessage.class, maxAcknowledgePeriod());
+
+		SimpleMessage copy = new SimpleMessage("partitioned", "dzunovich");
+		copy.setId(read.getId());
+		partitionedTemplate.requeue(copy);
+		expect(partitionedTemplate.count()).toBe(1L);
+		expect(partitionedTemplate.read(SimpleMessage.class, maxAcknowledgePeriod()).getId()).toEqual(read.getId());
+
+		partitionedTemplate.acknowledge(copy);
+		expect(partitionedTemplate.count()).toBe(0L);
+	}
+
+	@Test(description = "should store messages in stripes and claim all of them")
+	public void testRelaxedClaim() {
+		MessageQueueTemplate relaxedTemplate = new MessageQueueTemplate(mongoTemplate, "relaxedQueue",
+				QueueOptions.defaultOptions().withClaimSpread(3));
+		relaxedTemplate.ensureIndex(byMessageId());
+
+		for (int i = 0; i < 10; i++) {
+			relaxedTemplate.put(new SimpleMessage("relaxed", String.valueOf(i)));
+		}
+		for (DBObject message : mongoTemplate.getCollection("relaxedQueue").find()) {
+			expect((Integer) message.get("stripe") < 3).toBe(true);
+		}
+		expect(relaxedTemplate.readUsesIndex(new Query())).toBe(true);
+
+		Set<String> values = new HashSet<>();
+		for (int i = 0; i < 10; i++) {
+			values.add(relaxedTemplate.read(SimpleMessage.class).getValue());
+		}
+		expect(values.size()).toBe(10);
+		expect(relaxedTemplate.count()).toBe(0L);
+	}
+
+	@Test(description = "should count messages with counters, stats and cache")
+	public void testCheapCounts() {
+		MessageQueueTemplate counterTemplate = new MessageQueueTemplate(mongoTemplate, "counterQueue",
+				QueueOptions.defaultOptions().withCounters("key"));
+		counterTemplate.put(new SimpleMessage("pavel", "dzunovich"));
+		counterTemplate.putAll(Arrays.asList(new SimpleMessage("pavel", "dzunovich2"), new SimpleMessage("segg3r", "dzunovich")));
+
+		expect(counterTemplate.countFromCounters()).toBe(3L);
+		expect(counterTemplate.countFromCounters("key", "pavel")).toBe(2L);
+		expect(counterTemplate.estimatedCount()).toBe(3L);
+		expect(counterTemplate.cachedCount(Duration.ofMinutes(1))).toBe(3L);
+
+		SimpleMessage message = counterTemplate.read(SimpleMessage.class, maxAcknowledgePeriod());
+		counterTemplate.requeue(message);
+		expect(counterTemplate.countFromCounters()).toBe(3L);
+
+		expect(counterTemplate.read(SimpleMessage.class, query(where("key").is("segg3r")))).not().toBeNull();
+		expect(counterTemplate.countFromCounters()).toBe(2L);
+		expect(counterTemplate.countFromCounters("key", "segg3r")).toBe(0L);
+		expect(counterTemplate.cachedCount(Duration.ofMinutes(1))).toBe(3L);
+		expect(counterTemplate.cachedCount(Duration.ZERO)).toBe(2L);
+	}
+
+	@Test(description = "should count compressed messages by uncompressed counted field")
+	public void testCountersWithCompression() {
+		MessageQueueTemplate counterTemplate = new MessageQueueTemplate(mongoTemplate, "compressionCounterQueue",
+				QueueOptions.defaultOptions().withCounters("key")
+						.withCompression(CompressionOptions.deflate().withThreshold(100).withUncompressedFields("key")));
+		StringBuilder largeValue = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			largeValue.append("dzunovich");
+		}
+
+		counterTemplate.put(new SimpleMessage("large", largeValue.toString()));
+
+		expect(counterTemplate.countFromCounters("key", "large")).toBe(1L);
+	}
+
+	@Test(description = "should reject counters on compressed fields", expectedExceptions = IllegalArgumentException.class)
+	public void testCountersRejectCompressedFields() {
+		new MessageQueueTemplate(mongoTemplate, "compressionCounterRejectQueue",
+				QueueOptions.defaultOptions().withCounters("value")
+						.withCompression(CompressionOptions.deflate().withThreshold(100).withUncompressedFields("key")));
+	}
+
+	@Test(description = "should move message to dead letters after max deliveries and redrive it")
+	public void testDeadLetters() {
+		MessageQueueTemplate deadLetterTemplate = new MessageQueueTemplate(mongoTemplate, "deadLetterQueue",
+				QueueOptions.defaultOptions().withMaxDeliveries(2));
+		deadLetterTemplate.put(new SimpleMessage("poison", "dzunovich"));
+
+		SimpleMessage message = deadLetterTemplate.read(SimpleMessage.class, maxAcknowledgePeriod());
+		expect(message.getDeliveries()).toBe(1);
+		deadLetterTemplate.requeue(message);
+		message = deadLetterTemplate.read(SimpleMessage.class, maxAcknowledgePeriod());
+		expect(message.getDeliveries()).toBe(2);
+		deadLetterTemplate.requeue(message);
+
+		expect(deadLetterTemplate.count()).toBe(0L);
+		expect(deadLetterTemplate.countDeadLetters(new Query())).toBe(1L);
+		List<SimpleMessage> deadLetters = deadLetterTemplate.readDeadLetters(SimpleMessage.class, query(where("key").is("poison")), 0);
+		expect(deadLetters.size()).toBe(1);
+		expect(deadLetters.get(0).getId()).toEqual(message.getId());
+		expect(deadLetters.get(0).getDeliveries()).toBe(2);
+
+		expect(deadLetterTemplate.redriveDeadLetters(new Query())).toBe(1L);
+		expect(deadLetterTemplate.countDeadLetters(new Query())).toBe(0L);
+		message = deadLetterTemplate.read(SimpleMessage.class, maxAcknowledgePeriod());
+		expect(message.getValue()).toEqual("dzunovich");
+		expect(message.getDeliveries()).toBe(1);
+	}
+
+	@Test(description = "should keep far future messages apart until they are due")
+	public void testDelayedMessages() throws Exception {
+		MessageQueueTemplate delayedTemplate = new MessageQueueTemplate(mongoTemplate, "delayedQueue",
+				QueueOptions.defaultOptions().withDelayThreshold(1000).withPromoterInterval(100));
+		delayedTemplate.put(new SimpleMessage("delayed", "later"), new Date(System.currentTimeMillis() + 1500));
+		delayedTemplate.put(new SimpleMessage("delayed", "now"));
+
+		expect(delayedTemplate.count()).toBe(2L);
+		expect(mongoTemplate.getCollection("delayedQueue").count()).toBe(1L);
+		expect(mongoTemplate.getCollection("delayedQueue.delayed").count()).toBe(1L);
+		expect(delayedTemplate.read(SimpleMessage.class, maxAcknowledgePeriod()).getValue()).toEqual("now");
+		expect(delayedTemplate.read(SimpleMessage.class, ReadTimings.waitingFor(0))).toBeNull();
+
+		sleep(2000);
+		expect(mongoTemplate.getCollection("delayedQueue.delayed").count()).toBe(0L);
+		expect(delayedTemplate.read(SimpleMessage.class, maxAcknowledgePeriod()).getValue()).toEqual("later");
+		delayedTemplate.close();
+	}
+
+	@Test(description = "should read lanes by their weights and fall through empty lanes")
+	public void testPriorityLanes() {
+		MessageQueueTemplate lanesTemplate = new MessageQueueTemplate(mongoTemplate, "lanesQueue",
+				QueueOptions.defaultOptions().withLanes(PriorityLanes.create()
+						.withLane("high", 3)
+						.withLane("low", 1)
+						.withSelector(message -> ((SimpleMessage) message).getKey())));
+		lanesTemplate.ensureIndex(byMessageId());
+		for (int i = 0; i < 4; i++) {
+			lanesTemplate.put(new SimpleMessage("low", String.valueOf(i)));
+		}
+		for (int i = 0; i < 4; i++) {
+			lanesTemplate.put(new SimpleMessage("high", String.valueOf(i)));
+		}
+		expect(lanesTemplate.count(query(where("_lane").is("low")))).toBe(4L);
+		expect(lanesTemplate.readUsesIndex(query(where("_lane").is("low")))).toBe(TRUE);
+
+		int low = 0;
+		for (int i = 0; i < 4; i++) {
+			if (lanesTemplate.read(SimpleMessage.class, maxAcknowledgePeriod()).getKey().equals("low")) low++;
+		}
+		expect(low).toBe(1);
+
+		expect(lanesTemplate.readBatch(SimpleMessage.class, 10, maxAcknowledgePeriod()).size()).toBe(4);
+		expect(lanesTemplate.read(SimpleMessage.class, ReadTimings.waitingFor(0))).toBeNull();
+	}
+
+	@Test(description = "should read messages put without lanes from the first lane")
+	public void testPriorityLanesReadMessagesWithoutLane() {
+		MessageQueueTemplate plainTemplate = new MessageQueueTemplate(mongoTemplate, "unlanedQueue");
+		MessageQueueTemplate lanesTemplate = new MessageQueueTemplate(mongoTemplate, "unlanedQueue",
+				QueueOptions.defaultOptions().withLanes(PriorityLanes.create()
+						.withLane("high", 3)
+						.withLane("low", 1)));
+		plainTemplate.put(new SimpleMessage("pavel", "dzunovich"));
+
+		SimpleMessage message = lanesTemplate.read(SimpleMessage.class, maxAcknowledgePeriod());
+		expect(message).not().toBeNull();
+		expect(message.getValue()).toEqual("dzunovich");
+		expect(lanesTemplate.read(SimpleMessage.class, ReadTimings.waitingFor(0))).toBeNull();
+	}
+
+	@Test(description = "should read messages repeatedly with prepared read")
+	public void testPrepareRead() {
+		MessageQueueTemplate preparedTemplate = new MessageQueueTemplate(mongoTemplate, "preparedQueue");
+		preparedTemplate.put(new SimpleMessage("pavel", "dzunovich"));
+		preparedTemplate.put(new SimpleMessage("segg3r", "dzunovich"));
+		preparedTemplate.put(new SimpleMessage("pavel", "dzunovich2"));
+
+		PreparedRead<SimpleMessage> read = preparedTemplate.prepareRead(SimpleMessage.class, ReadTimings.waitingFor(0),
+				query(where("key").is("pavel")));
+		Set<String> values = new HashSet<>();
+		values.add(read.read().getValue());
+		values.add(read.read().getValue());
+		expect(values.size()).toBe(2);
+		expect(read.read()).toBeNull();
+		expect(preparedTemplate.count()).toBe(3L);
+	}
+
+	@Test(description = "should create read indexes once and serve reads from them")
+	public void testEnsureIndex() {
+		MessageQueueTemplate indexedTemplate = new MessageQueueTemplate(mongoTemplate, "indexedQueue");
+		DBCollection collection = mongoTemplate.getCollection("indexedQueue");
+		indexedTemplate.ensureIndex(MessageIndex.byFields(MessageIndex.Entry.field("key")));
+		indexedTemplate.ensureIndex(MessageIndex.byFields(MessageIndex.Entry.field("key")));
+		new MessageQueueTemplate(mongoTemplate, "indexedQueue").ensureIndex(MessageIndex.byFields(MessageIndex.Entry.field("key")));
+
+		expect(collection.getIndexInfo().size()).toBe(3);
+		expect(indexedTemplate.readUsesIndex(query(where("key").is("pavel")))).toBe(TRUE);
+	}
+
 	@Test(description = "should not read same message twice without ack")
 	public void testAckReadTwiceFails() {
 		template.put(new SimpleMessage("pavel", "dzunovich"));
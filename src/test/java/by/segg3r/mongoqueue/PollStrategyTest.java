@@ -0,0 +1,59 @@
+package by.segg3r.mongoqueue;
+
+import org.testng.annotations.Test;
+
+import static by.segg3r.expectunit.Expect.expect;
+
+public class PollStrategyTest {
+
+	@Test(description = "should poll with fixed delay")
+	public void testFixed() {
+		PollStrategy strategy = PollStrategy.fixed(200);
+
+		expect(strategy.nextDelay(1)).toBe(200L);
+		expect(strategy.nextDelay(10)).toBe(200L);
+	}
+
+	@Test(description = "should keep exponential delays within growing cap")
+	public void testExponential() {
+		PollStrategy strategy = PollStrategy.exponential(10, 100);
+
+		for (int i = 0; i < 1000; i++) {
+			expect(strategy.nextDelay(1) <= 10).toBe(true);
+			expect(strategy.nextDelay(3) <= 40).toBe(true);
+			expect(strategy.nextDelay(30) <= 100).toBe(true);
+		}
+	}
+
+	@Test(description = "should shorten adaptive delays with growing hit rate")
+	public void testAdaptive() {
+		PollStrategy strategy = PollStrategy.adaptive(10, 1000);
+
+		for (int i = 0; i < 1000; i++) {
+			expect(strategy.nextDelay(1) >= 500).toBe(true);
+		}
+
+		for (int i = 0; i < 100; i++) {
+			strategy.onPoll(true);
+		}
+
+		for (int i = 0; i < 1000; i++) {
+			expect(strategy.nextDelay(1) <= 20).toBe(true);
+		}
+	}
+
+	@Test(description = "should copy adaptive strategy without its hit rate")
+	public void testAdaptiveCopy() {
+		AdaptivePollStrategy strategy = (AdaptivePollStrategy) PollStrategy.adaptive(10, 1000);
+		for (int i = 0; i < 100; i++) {
+			strategy.onPoll(true);
+		}
+
+		AdaptivePollStrategy copy = strategy.copy();
+		expect(copy.getHitRate()).toBe(0.0);
+		for (int i = 0; i < 1000; i++) {
+			expect(copy.nextDelay(1) >= 500).toBe(true);
+		}
+	}
+
+}
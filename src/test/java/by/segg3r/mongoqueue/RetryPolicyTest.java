@@ -0,0 +1,26 @@
+package by.segg3r.mongoqueue;
+
+import org.testng.annotations.Test;
+
+import static by.segg3r.expectunit.Expect.expect;
+
+public class RetryPolicyTest {
+
+	@Test(description = "should retry with fixed delay")
+	public void testFixed() {
+		RetryPolicy policy = RetryPolicy.fixed(200);
+
+		expect(policy.delay(1)).toBe(200L);
+		expect(policy.delay(10)).toBe(200L);
+	}
+
+	@Test(description = "should double retry delay with every delivery up to max")
+	public void testExponential() {
+		RetryPolicy policy = RetryPolicy.exponential(10, 100);
+
+		expect(policy.delay(1)).toBe(10L);
+		expect(policy.delay(3)).toBe(40L);
+		expect(policy.delay(30)).toBe(100L);
+	}
+
+}
@@ -0,0 +1,23 @@
+package by.segg3r.mongoqueue;
+
+import org.testng.annotations.Test;
+
+import static by.segg3r.expectunit.Expect.expect;
+
+public class TypeAliasesTest {
+
+	@Test(description = "should register alias which was read before registration")
+	public void testRegisterAfterUnknownAlias() {
+		TypeAliases typeAliases = TypeAliases.create();
+		expect(typeAliases.resolve(BaseMessage.class, "child") == BaseMessage.class).toBe(true);
+
+		typeAliases.register(ChildMessage.class, "child");
+		expect(typeAliases.resolve(BaseMessage.class, "child") == ChildMessage.class).toBe(true);
+	}
+
+	@Test(description = "should not register alias of another type", expectedExceptions = IllegalArgumentException.class)
+	public void testRegisterTakenAlias() {
+		TypeAliases.create().register(ChildMessage.class, "child").register(BaseMessage.class, "child");
+	}
+
+}